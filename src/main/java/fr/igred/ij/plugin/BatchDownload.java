@@ -0,0 +1,170 @@
+/*
+ *  Copyright (C) 2021-2023 GReD
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package fr.igred.ij.plugin;
+
+
+import fr.igred.omero.Client;
+import fr.igred.omero.exception.OMEROServerError;
+import fr.igred.omero.exception.ServiceException;
+import ij.IJ;
+import omero.RLong;
+import omero.RType;
+import omero.sys.ParametersI;
+
+import java.io.File;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Downloads the original files of many images concurrently, downloading each fileset only once.
+ * <p>Each fileset is downloaded to its own subdirectory, so that files with the same name in different filesets do not
+ * overwrite each other.
+ */
+final class BatchDownload {
+
+    /** The query retrieving the fileset of each image. */
+    private static final String QUERY = "select i.id, fs.id from Image as i left outer join i.fileset as fs" +
+                                        " where i.id in (:ids)";
+
+
+    /** Prevent instantiation of utility class. */
+    private BatchDownload() {
+    }
+
+
+    /**
+     * Groups images by fileset.
+     *
+     * @param client The client.
+     * @param ids    The image IDs.
+     * @param errors The list to which images which do not exist (or cannot be read) are added.
+     *
+     * @return The image IDs, grouped by fileset (negative IDs are images without fileset), in the order of the first
+     * image of each fileset.
+     *
+     * @throws ServiceException Cannot connect to OMERO.
+     * @throws OMEROServerError Server error.
+     */
+    private static Map<Long, List<Long>> groupByFileset(Client client, List<Long> ids, Collection<String> errors)
+    throws ServiceException, OMEROServerError {
+        ParametersI params = new ParametersI();
+        params.addIds(ids);
+
+        Map<Long, Long> filesets = new LinkedHashMap<>(ids.size());
+        for (List<RType> row : ListQuery.projection(client, QUERY, params)) {
+            long imageId = ((RLong) row.get(0)).getValue();
+            // Images imported before filesets existed are downloaded on their own
+            long filesetId = row.get(1) == null ? -imageId : ((RLong) row.get(1)).getValue();
+            filesets.put(imageId, filesetId);
+        }
+
+        Map<Long, List<Long>> groups = new LinkedHashMap<>(ids.size());
+        for (Long id : ids) {
+            Long filesetId = filesets.get(id);
+            if (filesetId != null) {
+                groups.computeIfAbsent(filesetId, k -> new ArrayList<>(1)).add(id);
+            } else {
+                errors.add("Image " + id + ": not found in the current group");
+            }
+        }
+        return groups;
+    }
+
+
+    /**
+     * Returns the subdirectory where a fileset is downloaded.
+     *
+     * @param path      The download path.
+     * @param filesetId The fileset ID (negative for an image without fileset).
+     *
+     * @return See above.
+     */
+    private static String directory(String path, long filesetId) {
+        String name = filesetId < 0 ? "Image_" + -filesetId : "Fileset_" + filesetId;
+        return Paths.get(path, name).toString();
+    }
+
+
+    /**
+     * Downloads the original files of the specified images.
+     *
+     * @param client  The client.
+     * @param ids     The image IDs.
+     * @param path    The path where the files should be downloaded.
+     * @param threads The number of filesets downloaded concurrently.
+     * @param errors  The list to which errors are added.
+     *
+     * @return The downloaded files for each image.
+     *
+     * @throws ServiceException     Cannot connect to OMERO.
+     * @throws OMEROServerError     Server error.
+     * @throws InterruptedException The thread was interrupted.
+     */
+    static Map<Long, List<File>> download(Client client, List<Long> ids, String path, int threads,
+                                          Collection<String> errors)
+    throws ServiceException, OMEROServerError, InterruptedException {
+        if (ids.isEmpty()) {
+            return new LinkedHashMap<>(0);
+        }
+        Map<Long, List<Long>> groups = groupByFileset(client, ids, errors);
+
+        long start = System.nanoTime();
+
+        // Files which were already complete on disk are not counted
+        LongAdder                           bytes   = new LongAdder();
+        Map<List<Long>, Future<List<File>>> futures = new LinkedHashMap<>(groups.size());
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+        try {
+            for (Map.Entry<Long, List<Long>> group : groups.entrySet()) {
+                long   imageId = group.getValue().get(0);
+                String dir     = directory(path, group.getKey());
+                futures.put(group.getValue(),
+                            executor.submit(() -> OriginalFileDownload.download(client, imageId, dir, bytes)));
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        Map<Long, List<File>> files = new LinkedHashMap<>(ids.size());
+        for (Map.Entry<List<Long>, Future<List<File>>> entry : futures.entrySet()) {
+            try {
+                List<File> downloaded = entry.getValue().get();
+                entry.getKey().forEach(id -> files.put(id, downloaded));
+            } catch (ExecutionException e) {
+                errors.add("Image " + entry.getKey().get(0) + ": " + e.getCause().getMessage());
+            }
+        }
+
+        double seconds = (System.nanoTime() - start) / 1.0e9;
+        double mb      = bytes.sum() / (1024.0 * 1024.0);
+        IJ.log(String.format(Locale.ROOT,
+                             "Downloaded %d images (%d filesets, %.1f MB transferred) in %.1f s: %.1f MB/s",
+                             files.size(), groups.size(), mb, seconds, seconds > 0 ? mb / seconds : 0.0));
+        return files;
+    }
+
+}
@@ -0,0 +1,208 @@
+/*
+ *  Copyright (C) 2021-2023 GReD
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package fr.igred.ij.plugin;
+
+
+import fr.igred.omero.Client;
+import fr.igred.omero.exception.OMEROServerError;
+import fr.igred.omero.exception.ServiceException;
+import ome.formats.OMEROMetadataStoreClient;
+import ome.formats.importer.ImportCandidates;
+import ome.formats.importer.ImportConfig;
+import ome.formats.importer.ImportContainer;
+import ome.formats.importer.ImportLibrary;
+import ome.formats.importer.OMEROWrapper;
+import ome.formats.importer.cli.ErrorHandler;
+import ome.formats.importer.cli.LoggingImportMonitor;
+import omero.model.DatasetI;
+import omero.model.Pixels;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+
+/**
+ * Imports many files to a dataset through a single import session, with filesets imported in parallel.
+ */
+final class BatchImport {
+
+    /** Prevent instantiation of utility class. */
+    private BatchImport() {
+    }
+
+
+    /**
+     * Imports a single fileset.
+     *
+     * @param library   The import library.
+     * @param container The fileset to import.
+     * @param uploads   The thread pool used to upload the files.
+     * @param index     The index of the fileset.
+     *
+     * @return The import result.
+     */
+    private static ImportResult importContainer(ImportLibrary library, ImportContainer container,
+                                                ExecutorService uploads, int index) {
+        ImportResult result = new ImportResult(container.getFile().getPath());
+        try {
+            List<Pixels> pixels = library.importImage(container, uploads, index);
+            result.addIds(pixels.stream()
+                                .map(p -> p.getImage().getId().getValue())
+                                .distinct()
+                                .collect(Collectors.toList()));
+        } catch (Throwable e) { // ImportLibrary.importImage declares Throwable
+            // The message alone can be null, which would look like a successful import
+            result.setError(String.valueOf(e));
+        }
+        return result;
+    }
+
+
+    /**
+     * Lists the files used by filesets.
+     *
+     * @param containers The filesets.
+     *
+     * @return The paths to the files.
+     */
+    private static List<String> usedFiles(Collection<ImportContainer> containers) {
+        return containers.stream()
+                         .flatMap(c -> Arrays.stream(c.getUsedFiles()))
+                         .collect(Collectors.toList());
+    }
+
+
+    /**
+     * Lists the paths rejected by the importer: those which are not used by any fileset.
+     *
+     * @param paths      The paths to the files or directories.
+     * @param containers The filesets found by the importer.
+     *
+     * @return The failed import results, one per rejected path.
+     */
+    private static List<ImportResult> rejected(String[] paths, Collection<ImportContainer> containers) {
+        Set<Path> used = usedFiles(containers).stream()
+                                              .map(f -> Paths.get(ImportResult.normalize(f)))
+                                              .collect(Collectors.toSet());
+
+        List<ImportResult> rejected = new ArrayList<>(0);
+        for (String path : paths) {
+            Path file = Paths.get(ImportResult.normalize(path));
+            // A directory is accepted if any file it contains is used
+            if (used.stream().noneMatch(f -> f.startsWith(file))) {
+                ImportResult result = new ImportResult(path);
+                result.setError("File not found, or not a supported image");
+                rejected.add(result);
+            }
+        }
+        return rejected;
+    }
+
+
+    /**
+     * Imports files or directories to a dataset.
+     *
+     * @param client       The client.
+     * @param datasetId    The dataset ID.
+     * @param paths        The paths to the files or directories.
+     * @param threads      The number of filesets imported (and files uploaded) in parallel.
+     * @param skipExisting Whether to skip filesets whose files were all already imported to the dataset.
+     *
+     * @return The import results, one per fileset, followed by one per path rejected by the importer. Skipped filesets
+     *     hold the IDs of the existing images.
+     *
+     * @throws ServiceException     Cannot connect to OMERO.
+     * @throws OMEROServerError     Server error.
+     * @throws IOException          Cannot read the files.
+     * @throws InterruptedException The thread was interrupted.
+     */
+    static List<ImportResult> importFiles(Client client, long datasetId, String[] paths, int threads,
+                                          boolean skipExisting)
+    throws ServiceException, OMEROServerError, IOException, InterruptedException {
+        int n = Math.max(1, threads);
+
+        ImportConfig config = new ImportConfig();
+        config.target.set("Dataset:" + datasetId);
+        config.parallelUpload.set(n);
+        config.parallelFileset.set(n);
+
+        List<ImportResult>       results  = new ArrayList<>(paths.length);
+        OMEROMetadataStoreClient store    = client.getImportStore();
+        ExecutorService          uploads  = Executors.newFixedThreadPool(n);
+        ExecutorService          filesets = Executors.newFixedThreadPool(n);
+        try (OMEROWrapper reader = new OMEROWrapper(config)) {
+            ImportLibrary library = new ImportLibrary(store, reader);
+            library.addObserver(new LoggingImportMonitor());
+
+            ImportCandidates      candidates = new ImportCandidates(reader, paths, new ErrorHandler(config));
+            List<ImportContainer> containers = candidates.getContainers();
+
+            // Filesets are skipped as a whole, so that partial filesets are never imported
+            Map<String, List<Long>> existing = skipExisting ?
+                                               ImportedFiles.findImported(client, datasetId, usedFiles(containers)) :
+                                               Collections.emptyMap();
+
+            List<ImportContainer> queued = new ArrayList<>(containers.size());
+            for (ImportContainer container : containers) {
+                List<Long> ids = ImportedFiles.commonImages(existing, container.getUsedFiles());
+                if (ids.isEmpty()) {
+                    queued.add(container);
+                } else {
+                    ImportResult result = new ImportResult(container.getFile().getPath());
+                    result.addIds(ids);
+                    results.add(result);
+                }
+            }
+
+            List<Future<ImportResult>> futures = new ArrayList<>(queued.size());
+            for (int i = 0; i < queued.size(); i++) {
+                ImportContainer container = queued.get(i);
+                container.setTarget(new DatasetI(datasetId, false));
+                int index = i;
+                futures.add(filesets.submit(() -> importContainer(library, container, uploads, index)));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    results.add(futures.get(i).get());
+                } catch (ExecutionException e) {
+                    ImportResult result = new ImportResult(queued.get(i).getFile().getPath());
+                    result.setError(String.valueOf(e.getCause()));
+                    results.add(result);
+                }
+            }
+            results.addAll(rejected(paths, containers));
+        } finally {
+            filesets.shutdownNow();
+            uploads.shutdownNow();
+            store.logout();
+        }
+        return results;
+    }
+
+}
@@ -0,0 +1,148 @@
+/*
+ *  Copyright (C) 2021-2023 GReD
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package fr.igred.ij.plugin;
+
+
+import fr.igred.omero.Client;
+import ij.IJ;
+import omero.CmdError;
+import omero.ServerError;
+import omero.cmd.CmdCallbackI;
+import omero.cmd.ERR;
+import omero.cmd.Response;
+import omero.gateway.exception.DSAccessException;
+import omero.gateway.exception.DSOutOfServiceException;
+import omero.model.IObject;
+
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+
+/**
+ * Single delete command covering many objects, running on the server.
+ */
+class DeleteJob {
+
+    /** The status of a running command. */
+    static final String RUNNING = "running";
+
+    /** The status of a successful command. */
+    static final String DONE = "done";
+
+    /** The status of a failed command. */
+    static final String FAILED = "failed";
+
+    /** The time between two checks on the command, in milliseconds. */
+    private static final long POLL_MS = 500L;
+
+    /** The callback on the delete command. */
+    private final CmdCallbackI callback;
+
+    /** The number of targeted objects. */
+    private final int size;
+
+    /** The error returned by the server, if any. */
+    private String error = null;
+
+    /** Whether the command has finished. */
+    private boolean finished = false;
+
+
+    /**
+     * Submits a delete command for the specified objects.
+     *
+     * @param client  The client.
+     * @param objects The objects to delete.
+     *
+     * @throws ExecutionException      A Facility can't be retrieved or instantiated.
+     * @throws DSOutOfServiceException Cannot connect to OMERO.
+     * @throws DSAccessException       Cannot access data.
+     */
+    DeleteJob(Client client, List<IObject> objects)
+    throws ExecutionException, DSOutOfServiceException, DSAccessException {
+        this.size = objects.size();
+        this.callback = client.getDm().delete(client.getCtx(), objects);
+    }
+
+
+    /**
+     * Returns the number of targeted objects.
+     *
+     * @return See above.
+     */
+    int size() {
+        return size;
+    }
+
+
+    /**
+     * Checks whether the command has finished, waiting at most the specified time.
+     *
+     * @param ms The maximum time to wait, in milliseconds.
+     *
+     * @return True if the command has finished.
+     *
+     * @throws InterruptedException The thread was interrupted.
+     */
+    synchronized boolean isFinished(long ms) throws InterruptedException {
+        if (!finished && callback.block(ms)) {
+            Response response = callback.getResponse();
+            if (response instanceof ERR) {
+                error = ((ERR) response).name;
+            }
+            finished = true;
+            try {
+                callback.close(true);
+            } catch (ServerError ignored) {
+                // DO NOTHING
+            }
+        }
+        return finished;
+    }
+
+
+    /**
+     * Returns the status of the command: {@link #RUNNING}, {@link #DONE} or {@link #FAILED} followed by the error.
+     *
+     * @return See above.
+     *
+     * @throws InterruptedException The thread was interrupted.
+     */
+    String getStatus() throws InterruptedException {
+        String status = RUNNING;
+        if (isFinished(0L)) {
+            status = error == null ? DONE : FAILED + ": " + error;
+        }
+        return status;
+    }
+
+
+    /**
+     * Waits for the command to finish.
+     *
+     * @throws ServerError          The delete command failed.
+     * @throws InterruptedException The thread was interrupted.
+     */
+    void await() throws ServerError, InterruptedException {
+        while (!isFinished(POLL_MS)) {
+            IJ.showStatus("Deleting " + size + " objects...");
+        }
+        if (error != null) {
+            throw new CmdError(null, null, "Delete failed: " + error, callback.getResponse());
+        }
+    }
+
+}
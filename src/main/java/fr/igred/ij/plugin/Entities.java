@@ -0,0 +1,218 @@
+/*
+ *  Copyright (C) 2021-2023 GReD
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package fr.igred.ij.plugin;
+
+
+import omero.model.Annotation;
+import omero.model.DatasetAnnotationLinkI;
+import omero.model.DatasetI;
+import omero.model.IObject;
+import omero.model.ImageAnnotationLinkI;
+import omero.model.ImageI;
+import omero.model.MapAnnotationI;
+import omero.model.PlateAnnotationLinkI;
+import omero.model.PlateI;
+import omero.model.ProjectAnnotationLinkI;
+import omero.model.ProjectI;
+import omero.model.ScreenAnnotationLinkI;
+import omero.model.ScreenI;
+import omero.model.TagAnnotationI;
+import omero.model.WellAnnotationLinkI;
+import omero.model.WellI;
+
+import static fr.igred.ij.plugin.OMEROMacroExtension.DATASET;
+import static fr.igred.ij.plugin.OMEROMacroExtension.IMAGE;
+import static fr.igred.ij.plugin.OMEROMacroExtension.MAP;
+import static fr.igred.ij.plugin.OMEROMacroExtension.PLATE;
+import static fr.igred.ij.plugin.OMEROMacroExtension.PROJECT;
+import static fr.igred.ij.plugin.OMEROMacroExtension.SCREEN;
+import static fr.igred.ij.plugin.OMEROMacroExtension.TAG;
+import static fr.igred.ij.plugin.OMEROMacroExtension.WELL;
+
+
+/**
+ * Creates OMERO model objects from types and IDs, without loading them from the server.
+ */
+final class Entities {
+
+    /** Prevent instantiation of utility class. */
+    private Entities() {
+    }
+
+
+    /**
+     * Creates an unloaded object of the specified type, which can be used as a reference in links or commands.
+     *
+     * @param type The object type (singular).
+     * @param id   The object ID.
+     *
+     * @return The unloaded object.
+     *
+     * @throws IllegalArgumentException If the type is not supported.
+     */
+    static IObject unloaded(String type, long id) {
+        IObject object;
+        switch (type) {
+            case PROJECT:
+                object = new ProjectI(id, false);
+                break;
+            case DATASET:
+                object = new DatasetI(id, false);
+                break;
+            case IMAGE:
+                object = new ImageI(id, false);
+                break;
+            case SCREEN:
+                object = new ScreenI(id, false);
+                break;
+            case PLATE:
+                object = new PlateI(id, false);
+                break;
+            case WELL:
+                object = new WellI(id, false);
+                break;
+            case TAG:
+                object = new TagAnnotationI(id, false);
+                break;
+            case MAP:
+                object = new MapAnnotationI(id, false);
+                break;
+            default:
+                throw new IllegalArgumentException("Invalid type: " + type);
+        }
+        return object;
+    }
+
+
+    /**
+     * Returns the HQL entity for links between objects of the specified type and annotations.
+     *
+     * @param type The object type (singular).
+     *
+     * @return See above.
+     *
+     * @throws IllegalArgumentException If the type cannot be annotated.
+     */
+    static String annotationLink(String type) {
+        String entity = ListQuery.entity(type);
+        if (entity == null || TAG.equals(type) || MAP.equals(type)) {
+            throw new IllegalArgumentException("Cannot annotate type: " + type);
+        }
+        return entity + "AnnotationLink";
+    }
+
+
+    /**
+     * Creates an unloaded link between objects of the specified type and an annotation.
+     *
+     * @param type The object type (singular).
+     * @param id   The link ID.
+     *
+     * @return The unloaded link.
+     *
+     * @throws IllegalArgumentException If the type cannot be annotated.
+     */
+    static IObject unloadedAnnotationLink(String type, long id) {
+        IObject link;
+        switch (type) {
+            case PROJECT:
+                link = new ProjectAnnotationLinkI(id, false);
+                break;
+            case DATASET:
+                link = new DatasetAnnotationLinkI(id, false);
+                break;
+            case IMAGE:
+                link = new ImageAnnotationLinkI(id, false);
+                break;
+            case SCREEN:
+                link = new ScreenAnnotationLinkI(id, false);
+                break;
+            case PLATE:
+                link = new PlateAnnotationLinkI(id, false);
+                break;
+            case WELL:
+                link = new WellAnnotationLinkI(id, false);
+                break;
+            default:
+                throw new IllegalArgumentException("Cannot annotate type: " + type);
+        }
+        return link;
+    }
+
+
+    /**
+     * Creates a new link between an object and an annotation, without loading them from the server.
+     *
+     * @param type           The object type (singular).
+     * @param id             The object ID.
+     * @param annotationType The annotation type (singular).
+     * @param annotationId   The annotation ID.
+     *
+     * @return The new (unsaved) link.
+     *
+     * @throws IllegalArgumentException If the types are not supported.
+     */
+    static IObject annotationLink(String type, long id, String annotationType, long annotationId) {
+        if (!TAG.equals(annotationType) && !MAP.equals(annotationType)) {
+            throw new IllegalArgumentException("Invalid annotation type: " + annotationType);
+        }
+        Annotation annotation = (Annotation) unloaded(annotationType, annotationId);
+
+        IObject link;
+        switch (type) {
+            case PROJECT:
+                ProjectAnnotationLinkI projectLink = new ProjectAnnotationLinkI();
+                projectLink.setParent(new ProjectI(id, false));
+                projectLink.setChild(annotation);
+                link = projectLink;
+                break;
+            case DATASET:
+                DatasetAnnotationLinkI datasetLink = new DatasetAnnotationLinkI();
+                datasetLink.setParent(new DatasetI(id, false));
+                datasetLink.setChild(annotation);
+                link = datasetLink;
+                break;
+            case IMAGE:
+                ImageAnnotationLinkI imageLink = new ImageAnnotationLinkI();
+                imageLink.setParent(new ImageI(id, false));
+                imageLink.setChild(annotation);
+                link = imageLink;
+                break;
+            case SCREEN:
+                ScreenAnnotationLinkI screenLink = new ScreenAnnotationLinkI();
+                screenLink.setParent(new ScreenI(id, false));
+                screenLink.setChild(annotation);
+                link = screenLink;
+                break;
+            case PLATE:
+                PlateAnnotationLinkI plateLink = new PlateAnnotationLinkI();
+                plateLink.setParent(new PlateI(id, false));
+                plateLink.setChild(annotation);
+                link = plateLink;
+                break;
+            case WELL:
+                WellAnnotationLinkI wellLink = new WellAnnotationLinkI();
+                wellLink.setParent(new WellI(id, false));
+                wellLink.setChild(annotation);
+                link = wellLink;
+                break;
+            default:
+                throw new IllegalArgumentException("Cannot annotate type: " + type);
+        }
+        return link;
+    }
+
+}
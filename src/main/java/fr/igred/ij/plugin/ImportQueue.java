@@ -0,0 +1,204 @@
+/*
+ *  Copyright (C) 2021-2023 GReD
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package fr.igred.ij.plugin;
+
+
+import fr.igred.omero.Client;
+import fr.igred.omero.exception.AccessException;
+import fr.igred.omero.exception.OMEROServerError;
+import fr.igred.omero.exception.ServiceException;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Bounded queue of image imports, uploaded to OMERO by background workers.
+ * <p>When the queue is full, submitting a new import blocks until a worker is available, so that the macro cannot
+ * produce files faster than they are uploaded.
+ */
+class ImportQueue {
+
+    /** The default number of upload workers. */
+    static final int DEFAULT_WORKERS = 2;
+
+    /** The maximum number of imports waiting for a worker. */
+    private static final int CAPACITY = 8;
+
+    /** The upload workers. */
+    private final ThreadPoolExecutor executor;
+
+    /** The submitted imports, in submission order. */
+    private final List<Future<ImportResult>> results = new ArrayList<>(0);
+
+
+    /**
+     * Creates a new import queue with the default number of workers.
+     */
+    ImportQueue() {
+        executor = new ThreadPoolExecutor(DEFAULT_WORKERS, DEFAULT_WORKERS, 0L, TimeUnit.MILLISECONDS,
+                                          new ArrayBlockingQueue<>(CAPACITY),
+                                          r -> {
+                                              Thread thread = new Thread(r, "OMERO import");
+                                              thread.setDaemon(true);
+                                              return thread;
+                                          },
+                                          ImportQueue::waitForSlot);
+    }
+
+
+    /**
+     * Blocks until the rejected task can be added to the queue.
+     *
+     * @param r        The rejected task.
+     * @param executor The executor.
+     */
+    private static void waitForSlot(Runnable r, ThreadPoolExecutor executor) {
+        if (executor.isShutdown()) {
+            throw new RejectedExecutionException("Import queue is closed");
+        }
+        try {
+            executor.getQueue().put(r);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrupted while waiting for the import queue", e);
+        }
+    }
+
+
+    /**
+     * Deletes a temporary file and its parent directory.
+     *
+     * @param file The temporary file.
+     *
+     * @throws IOException If the file or directory could not be deleted.
+     */
+    private static void deleteTemporary(Path file) throws IOException {
+        Files.deleteIfExists(file);
+        Path parent = file.getParent();
+        if (parent != null) {
+            Files.deleteIfExists(parent);
+        }
+    }
+
+
+    /**
+     * Imports a file to a dataset.
+     *
+     * @param client    The client.
+     * @param datasetId The dataset ID.
+     * @param path      The path to the image file.
+     * @param temporary Whether the file (and its parent directory) should be deleted after the import.
+     *
+     * @return The import result.
+     */
+    private static ImportResult upload(Client client, long datasetId, String path, boolean temporary) {
+        ImportResult result = new ImportResult(path);
+        try {
+            result.addIds(client.getDataset(datasetId).importImage(client, path));
+        } catch (ServiceException | AccessException | ExecutionException | OMEROServerError |
+                 NoSuchElementException e) {
+            result.setError(e.getMessage());
+        } finally {
+            if (temporary) {
+                try {
+                    deleteTemporary(Paths.get(path));
+                } catch (IOException e) {
+                    result.setError("Could not delete temp image: " + e.getMessage());
+                }
+            }
+        }
+        return result;
+    }
+
+
+    /**
+     * Sets the number of upload workers.
+     *
+     * @param workers The number of workers.
+     */
+    synchronized void setWorkers(int workers) {
+        int n = Math.max(1, workers);
+        if (n > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(n);
+            executor.setCorePoolSize(n);
+        } else {
+            executor.setCorePoolSize(n);
+            executor.setMaximumPoolSize(n);
+        }
+    }
+
+
+    /**
+     * Returns the number of upload workers.
+     *
+     * @return See above.
+     */
+    synchronized int getWorkers() {
+        return executor.getCorePoolSize();
+    }
+
+
+    /**
+     * Adds an import to the queue, waiting for a free slot if the queue is full.
+     *
+     * @param client    The client.
+     * @param datasetId The dataset ID.
+     * @param path      The path to the image file.
+     * @param temporary Whether the file (and its parent directory) should be deleted after the import.
+     *
+     * @return The number of imports submitted since the last call to {@link #await()}.
+     */
+    synchronized int submit(Client client, long datasetId, String path, boolean temporary) {
+        results.add(executor.submit(() -> upload(client, datasetId, path, temporary)));
+        return results.size();
+    }
+
+
+    /**
+     * Waits for all the submitted imports to finish.
+     *
+     * @return The results, in submission order.
+     *
+     * @throws InterruptedException The thread was interrupted.
+     */
+    synchronized List<ImportResult> await() throws InterruptedException {
+        List<ImportResult> done = new ArrayList<>(results.size());
+        for (Future<ImportResult> future : results) {
+            try {
+                done.add(future.get());
+            } catch (ExecutionException e) {
+                ImportResult result = new ImportResult("");
+                result.setError(e.getMessage());
+                done.add(result);
+            }
+        }
+        results.clear();
+        return done;
+    }
+
+}
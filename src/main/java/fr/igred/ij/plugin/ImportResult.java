@@ -0,0 +1,112 @@
+/*
+ *  Copyright (C) 2021-2023 GReD
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package fr.igred.ij.plugin;
+
+
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ * Result of an image import: the file, and the new image IDs or the error.
+ */
+class ImportResult {
+
+    /** The imported file. */
+    private final String path;
+
+    /** The new image IDs. */
+    private final List<Long> ids = new ArrayList<>(1);
+
+    /** The error message, if the import failed. */
+    private String error = null;
+
+
+    /**
+     * Creates a new result for the specified file.
+     *
+     * @param path The imported file (normalised to an absolute path, unless it is empty).
+     */
+    ImportResult(String path) {
+        this.path = path.isEmpty() ? path : normalize(path);
+    }
+
+
+    /**
+     * Normalises a path to an absolute path without redundant elements, so that results can be looked up by path.
+     *
+     * @param path The path.
+     *
+     * @return See above.
+     */
+    static String normalize(String path) {
+        return Paths.get(path).toAbsolutePath().normalize().toString();
+    }
+
+
+    /**
+     * Returns the absolute path to the imported file.
+     *
+     * @return See above.
+     */
+    String getPath() {
+        return path;
+    }
+
+
+    /**
+     * Returns the new image IDs.
+     *
+     * @return See above.
+     */
+    List<Long> getIds() {
+        return Collections.unmodifiableList(ids);
+    }
+
+
+    /**
+     * Adds new image IDs.
+     *
+     * @param imageIds The image IDs.
+     */
+    void addIds(Collection<Long> imageIds) {
+        ids.addAll(imageIds);
+    }
+
+
+    /**
+     * Returns the error message, if the import failed.
+     *
+     * @return See above.
+     */
+    String getError() {
+        return error;
+    }
+
+
+    /**
+     * Sets the error message.
+     *
+     * @param error The error message.
+     */
+    void setError(String error) {
+        this.error = error;
+    }
+
+}
@@ -0,0 +1,188 @@
+/*
+ *  Copyright (C) 2021-2023 GReD
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package fr.igred.ij.plugin;
+
+
+import fr.igred.omero.Client;
+import fr.igred.omero.exception.OMEROServerError;
+import fr.igred.omero.exception.ServiceException;
+import omero.RLong;
+import omero.RString;
+import omero.RType;
+import omero.rtypes;
+import omero.sys.ParametersI;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import static fr.igred.ij.plugin.OMEROMacroExtension.QUERY_BATCH_SIZE;
+
+
+/**
+ * Finds images already imported from local files, by comparing file names, sizes and checksums with the original files
+ * on OMERO.
+ * <p>Checksums are SHA-1 digests, which is the algorithm used by default when importing files to OMERO.
+ */
+final class ImportedFiles {
+
+    /** The size of the buffer used to read files. */
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    /** The query retrieving the images in a dataset imported from files with the given checksums, with the files. */
+    private static final String QUERY = "select distinct i.id, f.hash, f.name, f.size from DatasetImageLink as l" +
+                                        " join l.child as i join i.fileset as fs" +
+                                        " join fs.usedFiles as fe join fe.originalFile as f" +
+                                        " where l.parent.id = :dataset and f.hash in (:hashes)";
+
+
+    /** Prevent instantiation of utility class. */
+    private ImportedFiles() {
+    }
+
+
+    /**
+     * Computes the SHA-1 checksum of a file.
+     *
+     * @param file The file.
+     *
+     * @return The checksum, as a lower case hexadecimal string.
+     *
+     * @throws IOException If the file cannot be read.
+     */
+    static String sha1(Path file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-1 is not available", e);
+        }
+
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream in = Files.newInputStream(file)) {
+            int read = in.read(buffer);
+            while (read >= 0) {
+                digest.update(buffer, 0, read);
+                read = in.read(buffer);
+            }
+        }
+
+        StringBuilder hex = new StringBuilder(40);
+        for (byte b : digest.digest()) {
+            hex.append(String.format(Locale.ROOT, "%02x", b));
+        }
+        return hex.toString();
+    }
+
+
+    /**
+     * Finds the local files which were already imported to a dataset: files with the same name, size and checksum as
+     * an original file of an image in the dataset.
+     * <p>Checksums are looked up in batches, so that queries stay bounded for large directories.
+     *
+     * @param client    The client.
+     * @param datasetId The dataset ID.
+     * @param paths     The paths to the files.
+     *
+     * @return A map from the normalised absolute paths of the imported files to the corresponding image IDs, in the
+     *     order of the paths.
+     *
+     * @throws IOException      Cannot read the files.
+     * @throws ServiceException Cannot connect to OMERO.
+     * @throws OMEROServerError Server error.
+     */
+    static Map<String, List<Long>> findImported(Client client, long datasetId, Collection<String> paths)
+    throws IOException, ServiceException, OMEROServerError {
+        // Files with identical contents (empty files, for instance) share a checksum
+        Map<String, List<Path>> files = new LinkedHashMap<>(paths.size());
+        for (String path : paths) {
+            Path file = Paths.get(ImportResult.normalize(path));
+            if (Files.isRegularFile(file)) {
+                files.computeIfAbsent(sha1(file), h -> new ArrayList<>(1)).add(file);
+            }
+        }
+
+        Map<Path, List<Long>> found  = new HashMap<>(files.size());
+        List<String>          hashes = new ArrayList<>(files.keySet());
+        for (int i = 0; i < hashes.size(); i += QUERY_BATCH_SIZE) {
+            List<RType> values = new ArrayList<>(Math.min(QUERY_BATCH_SIZE, hashes.size() - i));
+            for (String hash : hashes.subList(i, Math.min(i + QUERY_BATCH_SIZE, hashes.size()))) {
+                values.add(rtypes.rstring(hash));
+            }
+            ParametersI params = new ParametersI();
+            params.addLong("dataset", datasetId);
+            params.add("hashes", rtypes.rlist(values));
+            for (List<RType> row : ListQuery.projection(client, QUERY, params)) {
+                long   imageId = ((RLong) row.get(0)).getValue();
+                String hash    = ((RString) row.get(1)).getValue();
+                String name    = ((RString) row.get(2)).getValue();
+                long   size    = row.get(3) != null ? ((RLong) row.get(3)).getValue() : -1L;
+                for (Path file : files.getOrDefault(hash, Collections.emptyList())) {
+                    if (file.getFileName().toString().equals(name) && Files.size(file) == size) {
+                        List<Long> ids = found.computeIfAbsent(file, f -> new ArrayList<>(1));
+                        if (!ids.contains(imageId)) {
+                            ids.add(imageId);
+                        }
+                    }
+                }
+            }
+        }
+
+        Map<String, List<Long>> imported = new LinkedHashMap<>(found.size());
+        for (String path : paths) {
+            Path file = Paths.get(ImportResult.normalize(path));
+            if (found.containsKey(file)) {
+                imported.put(file.toString(), found.get(file));
+            }
+        }
+        return imported;
+    }
+
+
+    /**
+     * Returns the images imported from all the specified files, which therefore belong to the same fileset.
+     *
+     * @param imported The imported files, as returned by {@link #findImported(Client, long, Collection)}.
+     * @param paths    The paths to the files.
+     *
+     * @return The image IDs, or an empty list if any file was not imported with the others.
+     */
+    static List<Long> commonImages(Map<String, List<Long>> imported, String... paths) {
+        List<Long> images = null;
+        for (String path : paths) {
+            List<Long> ids = imported.getOrDefault(ImportResult.normalize(path), Collections.emptyList());
+            if (images == null) {
+                images = new ArrayList<>(ids);
+            } else {
+                images.retainAll(ids);
+            }
+        }
+        return images != null ? images : new ArrayList<>(0);
+    }
+
+}
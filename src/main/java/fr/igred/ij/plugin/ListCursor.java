@@ -0,0 +1,81 @@
+/*
+ *  Copyright (C) 2021-2023 GReD
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package fr.igred.ij.plugin;
+
+
+import fr.igred.omero.Client;
+import fr.igred.omero.exception.OMEROServerError;
+import fr.igred.omero.exception.ServiceException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Cursor over the IDs returned by a {@link ListQuery}, fetching one page at a time from the server.
+ */
+class ListCursor {
+
+    /** The listing query. */
+    private final ListQuery query;
+
+    /** The maximum number of IDs per page. */
+    private final int pageSize;
+
+    /** The last ID returned. */
+    private long last = -1L;
+
+    /** Whether all the IDs have been returned. */
+    private boolean exhausted = false;
+
+
+    /**
+     * Creates a new cursor.
+     *
+     * @param query    The listing query.
+     * @param pageSize The maximum number of IDs per page.
+     */
+    ListCursor(ListQuery query, int pageSize) {
+        this.query = query;
+        this.pageSize = Math.max(1, pageSize);
+    }
+
+
+    /**
+     * Retrieves the next page of IDs.
+     *
+     * @param client The client.
+     *
+     * @return The next IDs, or an empty list if all the IDs have been returned.
+     *
+     * @throws ServiceException Cannot connect to OMERO.
+     * @throws OMEROServerError Server error.
+     */
+    List<Long> next(Client client) throws ServiceException, OMEROServerError {
+        List<Long> ids = new ArrayList<>(0);
+        if (!exhausted) {
+            ids = query.ids(client, last, pageSize);
+            if (ids.size() < pageSize) {
+                exhausted = true;
+            }
+            if (!ids.isEmpty()) {
+                last = ids.get(ids.size() - 1);
+            }
+        }
+        return ids;
+    }
+
+}
@@ -0,0 +1,584 @@
+/*
+ *  Copyright (C) 2021-2023 GReD
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package fr.igred.ij.plugin;
+
+
+import fr.igred.omero.Client;
+import fr.igred.omero.exception.OMEROServerError;
+import fr.igred.omero.exception.ServiceException;
+import omero.RLong;
+import omero.RTime;
+import omero.RType;
+import omero.ServerError;
+import omero.rtypes;
+import omero.sys.ParametersI;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static fr.igred.ij.plugin.OMEROMacroExtension.DATASET;
+import static fr.igred.ij.plugin.OMEROMacroExtension.IMAGE;
+import static fr.igred.ij.plugin.OMEROMacroExtension.MAP;
+import static fr.igred.ij.plugin.OMEROMacroExtension.PLATE;
+import static fr.igred.ij.plugin.OMEROMacroExtension.PROJECT;
+import static fr.igred.ij.plugin.OMEROMacroExtension.SCREEN;
+import static fr.igred.ij.plugin.OMEROMacroExtension.TAG;
+import static fr.igred.ij.plugin.OMEROMacroExtension.WELL;
+
+
+/**
+ * Builds and runs HQL queries listing objects of a given type, so that filtering happens on the server.
+ * <p>The listed objects are always referred to as {@code obj} in the query.
+ */
+class ListQuery {
+
+    /** The alias of the listed objects in the query. */
+    private static final String ALIAS = "obj";
+
+    /** The columns which can be retrieved with {@link #values(Client, List)}. */
+    static final String COLUMNS = "name, owner, date, sizeX, sizeY, sizeZ, sizeC, sizeT";
+
+    /** The format used for dates. */
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss",
+                                                                                     Locale.ROOT);
+
+    /** The pattern of well names: "Well A-1", "Well 1-1", etc. */
+    private static final Pattern WELL_NAME = Pattern.compile("Well ([A-Z]+|\\d+)-([A-Z]+|\\d+)");
+
+    /** The joins added after the listed entity. */
+    private final List<String> joins = new ArrayList<>(1);
+
+    /** The other entities in the from clause. */
+    private final List<String> entities = new ArrayList<>(2);
+
+    /** The conditions of the where clause. */
+    private final List<String> conditions = new ArrayList<>(2);
+
+    /** The query parameters. */
+    private final ParametersI params = new ParametersI();
+
+    /** The type of listed objects (singular). */
+    private final String type;
+
+    /** The HQL entity of listed objects. */
+    private final String entity;
+
+
+    /**
+     * Creates a new query listing objects of the specified type.
+     *
+     * @param type The object type (singular).
+     *
+     * @throws IllegalArgumentException If the type cannot be listed.
+     */
+    ListQuery(String type) {
+        this.type = type;
+        this.entity = entity(type);
+        if (entity == null) {
+            throw new IllegalArgumentException("Cannot list type: " + type);
+        }
+    }
+
+
+    /**
+     * Returns the HQL entity corresponding to the specified type.
+     *
+     * @param type The object type (singular).
+     *
+     * @return The HQL entity, or null if the type is not supported.
+     */
+    static String entity(String type) {
+        String hqlEntity;
+        switch (type) {
+            case PROJECT:
+                hqlEntity = "Project";
+                break;
+            case DATASET:
+                hqlEntity = "Dataset";
+                break;
+            case IMAGE:
+                hqlEntity = "Image";
+                break;
+            case SCREEN:
+                hqlEntity = "Screen";
+                break;
+            case PLATE:
+                hqlEntity = "Plate";
+                break;
+            case WELL:
+                hqlEntity = "Well";
+                break;
+            case TAG:
+                hqlEntity = "TagAnnotation";
+                break;
+            case MAP:
+                hqlEntity = "MapAnnotation";
+                break;
+            default:
+                hqlEntity = null;
+        }
+        return hqlEntity;
+    }
+
+
+    /**
+     * Checks if the specified type can be listed through a query.
+     *
+     * @param type The object type (singular).
+     *
+     * @return See above.
+     */
+    static boolean isSupported(String type) {
+        return entity(type) != null;
+    }
+
+
+    /**
+     * Converts a well row or column identifier (letters or number, starting from A or 1) to an index.
+     *
+     * @param identifier The identifier.
+     *
+     * @return The corresponding index, starting from 0.
+     */
+    private static int wellIndex(String identifier) {
+        int index = 0;
+        if (Character.isDigit(identifier.charAt(0))) {
+            index = Integer.parseInt(identifier);
+        } else {
+            for (char c : identifier.toCharArray()) {
+                index = 26 * index + (c - 'A' + 1);
+            }
+        }
+        return index - 1;
+    }
+
+
+    /**
+     * Converts a well row index to letters (0 is A, 26 is AA).
+     *
+     * @param index The row index.
+     *
+     * @return The corresponding letters.
+     */
+    private static String wellLetters(int index) {
+        StringBuilder letters = new StringBuilder(2);
+        int           n       = index + 1;
+        while (n > 0) {
+            letters.insert(0, (char) ('A' + (n - 1) % 26));
+            n = (n - 1) / 26;
+        }
+        return letters.toString();
+    }
+
+
+    /**
+     * Converts the first column of projection results to a list of IDs.
+     *
+     * @param rows The projection results.
+     *
+     * @return The list of IDs.
+     */
+    private static List<Long> toIDs(List<List<RType>> rows) {
+        List<Long> ids = new ArrayList<>(rows.size());
+        for (List<RType> row : rows) {
+            ids.add(((RLong) row.get(0)).getValue());
+        }
+        return ids;
+    }
+
+
+    /**
+     * Runs a projection query on the server.
+     *
+     * @param client     The client.
+     * @param query      The HQL query.
+     * @param parameters The query parameters.
+     *
+     * @return The projection results.
+     *
+     * @throws ServiceException Cannot connect to OMERO.
+     * @throws OMEROServerError Server error.
+     */
+    static List<List<RType>> projection(Client client, String query, ParametersI parameters)
+    throws ServiceException, OMEROServerError {
+        try {
+            return client.getQueryService().projection(query, parameters);
+        } catch (ServerError e) {
+            throw new OMEROServerError("Query failed: " + query, e);
+        }
+    }
+
+
+    /**
+     * Only lists objects owned by the specified user.
+     *
+     * @param ownerId The owner ID.
+     *
+     * @return This query.
+     */
+    ListQuery ownedBy(long ownerId) {
+        conditions.add(ALIAS + ".details.owner.id = :owner");
+        params.addLong("owner", ownerId);
+        return this;
+    }
+
+
+    /**
+     * Only lists objects with the specified name.
+     * <p>Tags are matched on their value and key-value pairs on their keys. Wells have no name on the server: their
+     * name ("Well A-1") is converted to a row and a column.
+     *
+     * @param name The name.
+     *
+     * @return This query.
+     */
+    ListQuery named(String name) {
+        switch (type) {
+            case WELL:
+                Matcher matcher = WELL_NAME.matcher(name);
+                if (matcher.matches()) {
+                    conditions.add(ALIAS + ".row = :row and " + ALIAS + ".column = :column");
+                    params.addInt("row", wellIndex(matcher.group(1)));
+                    params.addInt("column", wellIndex(matcher.group(2)));
+                } else {
+                    conditions.add(ALIAS + ".id < 0");
+                }
+                break;
+            case TAG:
+                conditions.add(ALIAS + ".textValue = :name");
+                params.addString("name", name);
+                break;
+            case MAP:
+                joins.add("join " + ALIAS + ".mapValue as mv");
+                conditions.add("mv.name = :name");
+                params.addString("name", name);
+                break;
+            default:
+                conditions.add(ALIAS + ".name = :name");
+                params.addString("name", name);
+        }
+        return this;
+    }
+
+
+    /**
+     * Only lists objects inside (or linked to) the specified container or annotation.
+     *
+     * @param parent   The parent type (singular).
+     * @param parentId The parent ID.
+     *
+     * @return This query.
+     *
+     * @throws IllegalArgumentException If objects of this type cannot be listed inside the parent type.
+     */
+    ListQuery in(String parent, long parentId) {
+        boolean annotation = TAG.equals(type) || MAP.equals(type);
+        boolean supported  = true;
+        switch (parent) {
+            case PROJECT:
+                if (DATASET.equals(type)) {
+                    entities.add("ProjectDatasetLink as pdl");
+                    conditions.add("pdl.child.id = " + ALIAS + ".id and pdl.parent.id = :parent");
+                } else if (IMAGE.equals(type)) {
+                    entities.add("DatasetImageLink as dil");
+                    entities.add("ProjectDatasetLink as pdl");
+                    conditions.add("dil.child.id = " + ALIAS + ".id and dil.parent.id = pdl.child.id");
+                    conditions.add("pdl.parent.id = :parent");
+                } else {
+                    supported = annotation;
+                }
+                break;
+            case DATASET:
+                if (IMAGE.equals(type)) {
+                    entities.add("DatasetImageLink as dil");
+                    conditions.add("dil.child.id = " + ALIAS + ".id and dil.parent.id = :parent");
+                } else {
+                    supported = annotation;
+                }
+                break;
+            case SCREEN:
+                if (PLATE.equals(type)) {
+                    entities.add("ScreenPlateLink as spl");
+                    conditions.add("spl.child.id = " + ALIAS + ".id and spl.parent.id = :parent");
+                } else if (WELL.equals(type)) {
+                    entities.add("ScreenPlateLink as spl");
+                    conditions.add(ALIAS + ".plate.id = spl.child.id and spl.parent.id = :parent");
+                } else if (IMAGE.equals(type)) {
+                    entities.add("WellSample as ws");
+                    entities.add("ScreenPlateLink as spl");
+                    conditions.add("ws.image.id = " + ALIAS + ".id and ws.well.plate.id = spl.child.id");
+                    conditions.add("spl.parent.id = :parent");
+                } else {
+                    supported = annotation;
+                }
+                break;
+            case PLATE:
+                if (WELL.equals(type)) {
+                    conditions.add(ALIAS + ".plate.id = :parent");
+                } else if (IMAGE.equals(type)) {
+                    entities.add("WellSample as ws");
+                    conditions.add("ws.image.id = " + ALIAS + ".id and ws.well.plate.id = :parent");
+                } else {
+                    supported = annotation;
+                }
+                break;
+            case WELL:
+                if (IMAGE.equals(type)) {
+                    entities.add("WellSample as ws");
+                    conditions.add("ws.image.id = " + ALIAS + ".id and ws.well.id = :parent");
+                } else {
+                    supported = annotation;
+                }
+                break;
+            case IMAGE:
+                supported = annotation;
+                break;
+            case TAG:
+            case MAP:
+                supported = !annotation;
+                if (supported) {
+                    entities.add(entity + "AnnotationLink as al");
+                    conditions.add("al.parent.id = " + ALIAS + ".id and al.child.id = :parent");
+                }
+                break;
+            default:
+                supported = false;
+        }
+        if (!supported) {
+            throw new IllegalArgumentException(String.format("Cannot list %s in %s", type, parent));
+        }
+        boolean linkedAnnotation = annotation && !TAG.equals(parent) && !MAP.equals(parent);
+        if (linkedAnnotation) {
+            entities.add(entity(parent) + "AnnotationLink as al");
+            conditions.add("al.child.id = " + ALIAS + ".id and al.parent.id = :parent");
+        }
+        params.addLong("parent", parentId);
+        return this;
+    }
+
+
+    /**
+     * Builds the HQL query with the specified select clause.
+     *
+     * @param select The select clause.
+     *
+     * @return The HQL query.
+     */
+    String toHQL(String select) {
+        return toHQL(select, null, null);
+    }
+
+
+    /**
+     * Builds the HQL query with the specified select clause and an optional additional join and condition.
+     *
+     * @param select    The select clause.
+     * @param join      The additional join (can be null).
+     * @param condition The additional condition (can be null).
+     *
+     * @return The HQL query.
+     */
+    private String toHQL(String select, String join, String condition) {
+        List<String> where = new ArrayList<>(conditions);
+        if (condition != null) {
+            where.add(condition);
+        }
+
+        StringBuilder query = new StringBuilder(128);
+        query.append("select ").append(select)
+             .append(" from ").append(entity).append(" as ").append(ALIAS);
+        for (String existing : joins) {
+            query.append(' ').append(existing);
+        }
+        if (join != null) {
+            query.append(' ').append(join);
+        }
+        for (String other : entities) {
+            query.append(", ").append(other);
+        }
+        if (!where.isEmpty()) {
+            query.append(" where ").append(String.join(" and ", where));
+        }
+        return query.toString();
+    }
+
+
+    /**
+     * Retrieves the IDs of the listed objects, in ascending order.
+     *
+     * @param client The client.
+     *
+     * @return The list of IDs.
+     *
+     * @throws ServiceException Cannot connect to OMERO.
+     * @throws OMEROServerError Server error.
+     */
+    List<Long> ids(Client client) throws ServiceException, OMEROServerError {
+        String query = toHQL("distinct " + ALIAS + ".id") + " order by " + ALIAS + ".id";
+        return toIDs(projection(client, query, params));
+    }
+
+
+    /**
+     * Counts the listed objects on the server, without retrieving them.
+     *
+     * @param client The client.
+     *
+     * @return The number of objects.
+     *
+     * @throws ServiceException Cannot connect to OMERO.
+     * @throws OMEROServerError Server error.
+     */
+    long count(Client client) throws ServiceException, OMEROServerError {
+        String            query = toHQL("count(distinct " + ALIAS + ".id)");
+        List<List<RType>> rows  = projection(client, query, params);
+        return rows.isEmpty() ? 0L : ((RLong) rows.get(0).get(0)).getValue();
+    }
+
+
+    /**
+     * Retrieves the HQL expressions for the specified column.
+     *
+     * @param column The column (see {@link #COLUMNS}).
+     *
+     * @return The corresponding expressions.
+     *
+     * @throws IllegalArgumentException If the column is not available for this type.
+     */
+    private List<String> expressions(String column) {
+        List<String> expressions = new ArrayList<>(2);
+        switch (column.toLowerCase(Locale.ROOT)) {
+            case "name":
+                if (WELL.equals(type)) {
+                    expressions.add(ALIAS + ".row");
+                    expressions.add(ALIAS + ".column");
+                } else if (TAG.equals(type)) {
+                    expressions.add(ALIAS + ".textValue");
+                } else if (!MAP.equals(type)) {
+                    expressions.add(ALIAS + ".name");
+                }
+                break;
+            case "owner":
+                expressions.add(ALIAS + ".details.owner.omeName");
+                break;
+            case "date":
+                expressions.add(ALIAS + ".details.creationEvent.time");
+                break;
+            case "sizex":
+            case "sizey":
+            case "sizez":
+            case "sizec":
+            case "sizet":
+                if (IMAGE.equals(type)) {
+                    expressions.add("px.size" + Character.toUpperCase(column.charAt(column.length() - 1)));
+                }
+                break;
+            default:
+        }
+        if (expressions.isEmpty()) {
+            throw new IllegalArgumentException(String.format("Column \"%s\" is not available for %s", column, type));
+        }
+        return expressions;
+    }
+
+
+    /**
+     * Retrieves the IDs of the listed objects and the values of the specified columns, in a single query.
+     * <p>Each row starts with the object ID, followed by the value of each column.
+     *
+     * @param client  The client.
+     * @param columns The columns (see {@link #COLUMNS}).
+     *
+     * @return The rows of values, in ascending ID order.
+     *
+     * @throws ServiceException         Cannot connect to OMERO.
+     * @throws OMEROServerError         Server error.
+     * @throws IllegalArgumentException If a column is not available for this type.
+     */
+    List<List<Object>> values(Client client, List<String> columns) throws ServiceException, OMEROServerError {
+        List<String> select = new ArrayList<>(columns.size() + 1);
+        select.add(ALIAS + ".id");
+        for (String column : columns) {
+            select.addAll(expressions(column));
+        }
+
+        String join = null;
+        if (select.stream().anyMatch(e -> e.startsWith("px."))) {
+            join = "left outer join " + ALIAS + ".pixels as px";
+        }
+        String query = toHQL("distinct " + String.join(", ", select), join, null) + " order by " + ALIAS + ".id";
+
+        List<List<RType>>  rows   = projection(client, query, params);
+        List<List<Object>> values = new ArrayList<>(rows.size());
+        for (List<RType> row : rows) {
+            List<Object> rowValues = new ArrayList<>(columns.size() + 1);
+            rowValues.add(rtypes.unwrap(row.get(0)));
+            int i = 1;
+            for (String column : columns) {
+                RType value = row.get(i++);
+                if (WELL.equals(type) && "name".equalsIgnoreCase(column)) {
+                    Object wellRow    = rtypes.unwrap(value);
+                    Object wellColumn = rtypes.unwrap(row.get(i++));
+                    if (wellRow instanceof Integer && wellColumn instanceof Integer) {
+                        String letters = wellLetters((Integer) wellRow);
+                        rowValues.add("Well " + letters + "-" + ((Integer) wellColumn + 1));
+                    } else {
+                        rowValues.add(null);
+                    }
+                } else if (value instanceof RTime) {
+                    Instant time = Instant.ofEpochMilli(((RTime) value).getValue());
+                    rowValues.add(DATE_FORMAT.format(time.atZone(ZoneId.systemDefault())));
+                } else {
+                    rowValues.add(rtypes.unwrap(value));
+                }
+            }
+            values.add(rowValues);
+        }
+        return values;
+    }
+
+
+    /**
+     * Retrieves a page of IDs of the listed objects, in ascending order, starting after the specified ID.
+     * <p>Pages are selected on the ID rather than with an offset, so that retrieving a page costs the same regardless
+     * of its position.
+     *
+     * @param client The client.
+     * @param after  The last ID of the previous page (-1 for the first page).
+     * @param limit  The maximum number of IDs.
+     *
+     * @return The list of IDs.
+     *
+     * @throws ServiceException Cannot connect to OMERO.
+     * @throws OMEROServerError Server error.
+     */
+    List<Long> ids(Client client, long after, int limit) throws ServiceException, OMEROServerError {
+        String query = toHQL("distinct " + ALIAS + ".id", null, ALIAS + ".id > :after") +
+                       " order by " + ALIAS + ".id";
+        ParametersI page = new ParametersI(new HashMap<>(params.map));
+        page.addLong("after", after);
+        page.page(0, limit);
+        return toIDs(projection(client, query, page));
+    }
+
+}
@@ -37,6 +37,7 @@ import fr.igred.omero.repository.ScreenWrapper;
 import fr.igred.omero.repository.WellWrapper;
 import fr.igred.omero.roi.ROIWrapper;
 import ij.IJ;
+import ij.ImageListener;
 import ij.ImagePlus;
 import ij.gui.Overlay;
 import ij.gui.Roi;
@@ -46,6 +47,16 @@ import ij.macro.MacroExtension;
 import ij.measure.ResultsTable;
 import ij.plugin.PlugIn;
 import ij.plugin.frame.RoiManager;
+import omero.RLong;
+import omero.RType;
+import omero.ServerError;
+import omero.api.IUpdatePrx;
+import omero.constants.projection.ProjectionType;
+import omero.gateway.exception.DSAccessException;
+import omero.gateway.exception.DSOutOfServiceException;
+import omero.gateway.model.ROIData;
+import omero.model.IObject;
+import omero.sys.ParametersI;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
@@ -54,20 +65,29 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Objects;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 import static ij.macro.ExtensionDescriptor.newDescriptor;
 import static java.lang.Integer.parseInt;
@@ -80,16 +100,26 @@ public class OMEROMacroExtension implements PlugIn, MacroExtension {
     public static final char DEFAULT_DELIMITER = '\t';
 
     /** The argument types. */
-    private static final String PROJECT = "project";
-    private static final String DATASET = "dataset";
-    private static final String IMAGE   = "image";
-    private static final String SCREEN  = "screen";
-    private static final String PLATE   = "plate";
-    private static final String WELL    = "well";
-    private static final String TAG     = "tag";
-    private static final String MAP     = "kv-pair";
+    static final String PROJECT = "project";
+    static final String DATASET = "dataset";
+    static final String IMAGE   = "image";
+    static final String SCREEN  = "screen";
+    static final String PLATE   = "plate";
+    static final String WELL    = "well";
+    static final String TAG     = "tag";
+    static final String MAP     = "kv-pair";
+
     private static final String INVALID = "Invalid type";
 
+    /** The maximum number of objects sent in a single save. */
+    private static final int SAVE_BATCH_SIZE = 500;
+
+    /** The maximum number of IDs in a single query. */
+    static final int QUERY_BATCH_SIZE = 1000;
+
+    /** The depth to which directories are scanned for files to import (as by the importer). */
+    private static final int SCAN_DEPTH = 4;
+
     /** Templates for error messages. */
     private static final String ERROR_POSSIBLE_VALUES = "%s: %s. Possible values are: %s";
     private static final String ERROR_RETRIEVE_IN     = "Could not retrieve %s in %s: %s";
@@ -100,37 +130,135 @@ public class OMEROMacroExtension implements PlugIn, MacroExtension {
             newDescriptor("switchGroup", this, ARG_NUMBER),
             newDescriptor("listForUser", this, ARG_STRING),
             newDescriptor("list", this, ARG_STRING, ARG_STRING + ARG_OPTIONAL, ARG_NUMBER + ARG_OPTIONAL),
+            newDescriptor("listToArray", this, ARG_STRING, ARG_OUTPUT + ARG_ARRAY,
+                          ARG_STRING + ARG_OPTIONAL, ARG_NUMBER + ARG_OPTIONAL),
+            newDescriptor("listToResults", this, ARG_STRING, ARG_STRING, ARG_STRING,
+                          ARG_STRING + ARG_OPTIONAL, ARG_NUMBER + ARG_OPTIONAL),
+            newDescriptor("count", this, ARG_STRING, ARG_STRING + ARG_OPTIONAL, ARG_NUMBER + ARG_OPTIONAL),
+            newDescriptor("openCursor", this, ARG_STRING, ARG_NUMBER,
+                          ARG_STRING + ARG_OPTIONAL, ARG_NUMBER + ARG_OPTIONAL),
+            newDescriptor("listNext", this, ARG_NUMBER),
+            newDescriptor("closeCursor", this, ARG_NUMBER),
             newDescriptor("createDataset", this, ARG_STRING, ARG_STRING, ARG_NUMBER + ARG_OPTIONAL),
             newDescriptor("createProject", this, ARG_STRING, ARG_STRING),
             newDescriptor("createTag", this, ARG_STRING, ARG_STRING),
             newDescriptor("createKeyValuePair", this, ARG_STRING, ARG_STRING),
             newDescriptor("link", this, ARG_STRING, ARG_NUMBER, ARG_STRING, ARG_NUMBER),
             newDescriptor("unlink", this, ARG_STRING, ARG_NUMBER, ARG_STRING, ARG_NUMBER),
+            newDescriptor("linkMany", this, ARG_STRING, ARG_STRING, ARG_STRING, ARG_NUMBER),
+            newDescriptor("unlinkMany", this, ARG_STRING, ARG_STRING, ARG_STRING, ARG_NUMBER),
             newDescriptor("addFile", this, ARG_STRING, ARG_NUMBER, ARG_STRING),
             newDescriptor("addToTable", this, ARG_STRING,
                           ARG_STRING + ARG_OPTIONAL, ARG_NUMBER + ARG_OPTIONAL, ARG_STRING + ARG_OPTIONAL),
             newDescriptor("saveTable", this, ARG_STRING, ARG_STRING, ARG_NUMBER),
             newDescriptor("saveTableAsFile", this, ARG_STRING, ARG_STRING, ARG_STRING + ARG_OPTIONAL),
             newDescriptor("clearTable", this, ARG_STRING),
-            newDescriptor("importImage", this, ARG_NUMBER, ARG_STRING + ARG_OPTIONAL),
+            newDescriptor("importImage", this, ARG_NUMBER, ARG_STRING + ARG_OPTIONAL, ARG_NUMBER + ARG_OPTIONAL),
+            newDescriptor("importImageAsync", this, ARG_NUMBER, ARG_STRING + ARG_OPTIONAL),
+            newDescriptor("uploadImage", this, ARG_NUMBER),
+            newDescriptor("importImages", this, ARG_NUMBER, ARG_STRING,
+                          ARG_STRING + ARG_OPTIONAL, ARG_NUMBER + ARG_OPTIONAL),
+            newDescriptor("awaitImports", this),
+            newDescriptor("setImportWorkers", this, ARG_NUMBER),
             newDescriptor("downloadImage", this, ARG_NUMBER, ARG_STRING),
+            newDescriptor("downloadImageToArray", this, ARG_NUMBER, ARG_STRING, ARG_OUTPUT + ARG_ARRAY),
+            newDescriptor("downloadImages", this, ARG_STRING, ARG_STRING, ARG_NUMBER, ARG_STRING + ARG_OPTIONAL),
             newDescriptor("delete", this, ARG_STRING, ARG_NUMBER),
+            newDescriptor("deleteMany", this, ARG_STRING, ARG_STRING, ARG_NUMBER + ARG_OPTIONAL),
+            newDescriptor("deleteStatus", this, ARG_NUMBER),
+            newDescriptor("awaitDelete", this, ARG_NUMBER),
             newDescriptor("getName", this, ARG_STRING, ARG_NUMBER),
             newDescriptor("getImage", this, ARG_NUMBER, ARG_STRING + ARG_OPTIONAL),
+            newDescriptor("prefetch", this, ARG_STRING, ARG_NUMBER, ARG_NUMBER + ARG_OPTIONAL),
+            newDescriptor("setPlaneCacheSize", this, ARG_NUMBER),
+            newDescriptor("setReadThreads", this, ARG_NUMBER),
+            newDescriptor("setPixelCache", this, ARG_STRING, ARG_NUMBER + ARG_OPTIONAL),
+            newDescriptor("openTiles", this, ARG_NUMBER, ARG_NUMBER, ARG_NUMBER,
+                          ARG_NUMBER + ARG_OPTIONAL, ARG_NUMBER + ARG_OPTIONAL),
+            newDescriptor("nextTile", this),
             newDescriptor("getImageFromROI", this, ARG_NUMBER, ARG_NUMBER),
+            newDescriptor("getImagesFromROIs", this, ARG_NUMBER, ARG_STRING + ARG_OPTIONAL),
+            newDescriptor("getProjection", this, ARG_NUMBER, ARG_STRING, ARG_NUMBER, ARG_NUMBER,
+                          ARG_NUMBER + ARG_OPTIONAL, ARG_NUMBER + ARG_OPTIONAL),
             newDescriptor("getROIs", this, ARG_NUMBER, ARG_NUMBER + ARG_OPTIONAL, ARG_STRING + ARG_OPTIONAL),
             newDescriptor("saveROIs", this, ARG_NUMBER, ARG_STRING + ARG_OPTIONAL),
             newDescriptor("removeROIs", this, ARG_NUMBER, ARG_STRING + ARG_OPTIONAL),
             newDescriptor("getKeyValuePairs", this, ARG_STRING, ARG_NUMBER, ARG_STRING + ARG_OPTIONAL),
+            newDescriptor("getKeyValuePairsToArrays", this, ARG_STRING, ARG_NUMBER,
+                          ARG_OUTPUT + ARG_ARRAY, ARG_OUTPUT + ARG_ARRAY),
             newDescriptor("getValue", this, ARG_STRING, ARG_NUMBER, ARG_STRING, ARG_STRING + ARG_OPTIONAL),
             newDescriptor("sudo", this, ARG_STRING),
             newDescriptor("endSudo", this),
+            newDescriptor("getCacheStatistics", this),
+            newDescriptor("clearCache", this),
             newDescriptor("disconnect", this),
             };
 
     /** The active tables. */
     private final Map<String, TableWrapper> tables = new HashMap<>(1);
 
+    /** The cache for objects retrieved from OMERO. */
+    private final ObjectCache cache = new ObjectCache();
+
+    /** The open listing cursors. */
+    private final Map<Integer, ListCursor> cursors = new HashMap<>(1);
+
+    /** The ID of the last opened cursor. */
+    private int lastCursorId = 0;
+
+    /** The background loader for images requested next. */
+    private final Prefetcher prefetcher = new Prefetcher();
+
+    /** The background image imports. */
+    private final ImportQueue imports = new ImportQueue();
+
+    /** The submitted delete commands. */
+    private final Map<Integer, DeleteJob> deletions = new HashMap<>(1);
+
+    /** The ID of the last submitted delete command. */
+    private int lastDeletionId = 0;
+
+    /** The open virtual stacks, by image. */
+    private final Map<ImagePlus, PlaneStack> planeStacks = Collections.synchronizedMap(new IdentityHashMap<>(0));
+
+    /** Closes the pixel store of a virtual stack when its image is closed. */
+    private final ImageListener virtualStackCloser = new ImageListener() {
+        @Override
+        public void imageOpened(ImagePlus imp) {
+            // DO NOTHING
+        }
+
+
+        @Override
+        public void imageClosed(ImagePlus imp) {
+            PlaneStack stack = planeStacks.remove(imp);
+            if (stack != null) {
+                stack.close();
+            }
+        }
+
+
+        @Override
+        public void imageUpdated(ImagePlus imp) {
+            // DO NOTHING
+        }
+    };
+
+    /** Whether the virtual stacks are closed with their images. */
+    private boolean listening = false;
+
+    /** The maximum number of bytes used by the plane cache of each virtual stack. */
+    private long planeCacheBytes = IJ.maxMemory() / 8;
+
+    /** The tiles being read. */
+    private TileIterator tiles;
+
+    /** The number of planes read concurrently when opening images. */
+    private int readThreads = 1;
+
+    /** The local cache storing planes read from OMERO on disk (null if disabled). */
+    private PixelCache pixelCache = null;
+
     /** The active client. */
     private Client client = new Client();
 
@@ -162,18 +290,69 @@ public class OMEROMacroExtension implements PlugIn, MacroExtension {
 
 
     /**
-     * Converts a list of GenericObjectWrappers to a comma-delimited list of IDs.
+     * Converts a list of GenericObjectWrappers to a list of IDs.
      *
      * @param list The objects list.
      * @param <T>  The type of objects.
      *
-     * @return A string containing the corresponding IDs, separated by commas.
+     * @return A list containing the corresponding IDs.
      */
-    private static <T extends GenericObjectWrapper<?>> String listToIDs(Collection<T> list) {
+    private static <T extends GenericObjectWrapper<?>> List<Long> toIDs(Collection<T> list) {
         return list.stream()
-                   .mapToLong(T::getId)
-                   .mapToObj(String::valueOf)
-                   .collect(Collectors.joining(","));
+                   .map(T::getId)
+                   .collect(Collectors.toList());
+    }
+
+
+    /**
+     * Converts a list of IDs to a comma-delimited string.
+     *
+     * @param ids The IDs.
+     *
+     * @return A string containing the IDs, separated by commas.
+     */
+    private static String joinIDs(Collection<Long> ids) {
+        return ids.stream()
+                  .map(String::valueOf)
+                  .collect(Collectors.joining(","));
+    }
+
+
+    /**
+     * Converts a comma-delimited string to a list of distinct IDs, ignoring invalid values.
+     *
+     * @param ids The IDs, separated by commas.
+     *
+     * @return The list of IDs.
+     */
+    private static List<Long> parseIDs(String ids) {
+        return Arrays.stream(ids.split(","))
+                     .map(String::trim)
+                     .map(OMEROMacroExtension::safeParseLong)
+                     .filter(Objects::nonNull)
+                     .distinct()
+                     .collect(Collectors.toList());
+    }
+
+
+    /**
+     * Fills a macro output array argument with the specified values.
+     * <p>Numbers are converted to doubles, other values to strings.
+     *
+     * @param arg    The output argument.
+     * @param values The values.
+     */
+    private static void setOutputArray(Object arg, Collection<?> values) {
+        Object[] array = new Object[values.size()];
+        int      i     = 0;
+        for (Object value : values) {
+            if (value instanceof Number) {
+                array[i++] = ((Number) value).doubleValue();
+            } else {
+                array[i++] = String.valueOf(value);
+            }
+        }
+        ((Object[]) arg)[0] = array;
     }
 
 
@@ -195,6 +374,39 @@ public class OMEROMacroExtension implements PlugIn, MacroExtension {
     }
 
 
+    /**
+     * Saves an image as TIFF in a new temporary directory, so that its file name is the image title.
+     *
+     * @param imp The image.
+     *
+     * @return The path to the saved file.
+     *
+     * @throws IOException If the temporary directory could not be created.
+     */
+    private static String saveTemporaryImage(ImagePlus imp) throws IOException {
+        Path   dir  = Files.createTempDirectory(Paths.get(IJ.getDir("temp")), "omero-import");
+        String path = dir.resolve(imp.getTitle() + ".tif").toString();
+        IJ.save(imp, path);
+        return path;
+    }
+
+
+    /**
+     * Reports the errors from image imports, all at once.
+     *
+     * @param results The import results.
+     */
+    private static void reportImportErrors(Collection<ImportResult> results) {
+        List<String> errors = results.stream()
+                                     .filter(r -> r.getError() != null)
+                                     .map(r -> r.getPath() + ": " + r.getError())
+                                     .collect(Collectors.toList());
+        if (!errors.isEmpty()) {
+            IJ.error("Could not import images:\n" + String.join("\n", errors));
+        }
+    }
+
+
     /**
      * Converts a Double to a Long.
      *
@@ -286,6 +498,94 @@ public class OMEROMacroExtension implements PlugIn, MacroExtension {
     }
 
 
+    /**
+     * Extracts the resolution level from a bounds string, e.g. "level:2".
+     *
+     * @param bounds The bounds string.
+     *
+     * @return The resolution level (0 is the full resolution), or -1 if none was specified.
+     */
+    private static int extractLevel(CharSequence bounds) {
+        Pattern pattern = Pattern.compile("level:(\\d+)", Pattern.CASE_INSENSITIVE);
+        Matcher matcher = pattern.matcher(bounds);
+        return matcher.find() ? parseInt(matcher.group(1)) : -1;
+    }
+
+
+    /**
+     * Extracts the plane indices selected along an axis, in the form "c:1,3", "t:0:200:10" or "z:2:5" (end excluded).
+     * Index lists and ranges (with an optional step) can be combined: "t:0,5:10,20:100:10".
+     *
+     * @param bounds The bounds string.
+     * @param axis   The axis (c, z or t).
+     * @param size   The size along the axis.
+     *
+     * @return The selected indices, in the specified order.
+     *
+     * @throws IllegalArgumentException If no index is selected.
+     */
+    private static int[] extractIndices(CharSequence bounds, String axis, int size) {
+        Pattern pattern = Pattern.compile("(?<![a-z])" + axis + ":([\\d:,]*)", Pattern.CASE_INSENSITIVE);
+        Matcher matcher = pattern.matcher(bounds);
+        if (!matcher.find() || matcher.group(1).isEmpty()) {
+            return IntStream.range(0, size).toArray();
+        }
+        IntStream indices = IntStream.empty();
+        // Empty parts are separators between axes, e.g. "c:1,3,t:5"
+        for (String part : matcher.group(1).split(",")) {
+            String[] tokens = part.split(":", -1);
+            if (tokens.length == 1 && !part.isEmpty()) {
+                indices = IntStream.concat(indices, IntStream.of(parseInt(tokens[0])));
+            } else if (tokens.length > 1) {
+                int start = tokens[0].isEmpty() ? 0 : parseInt(tokens[0]);
+                int end   = tokens[1].isEmpty() ? size : Math.min(size, parseInt(tokens[1]));
+                int step  = tokens.length < 3 || tokens[2].isEmpty() ? 1 : Math.max(1, parseInt(tokens[2]));
+                indices = IntStream.concat(indices, IntStream.iterate(start, i -> i + step)
+                                                             .limit(Math.max(0, (end - start + step - 1) / step)));
+            }
+        }
+        int[] selected = indices.filter(i -> i < size).distinct().toArray();
+        if (selected.length == 0) {
+            throw new IllegalArgumentException("No plane selected along " + axis + ": " + matcher.group(1));
+        }
+        return selected;
+    }
+
+
+    /**
+     * Determines if a bounds string selects planes with index lists or steps.
+     *
+     * @param bounds The bounds string.
+     *
+     * @return See above.
+     */
+    private static boolean isSparse(CharSequence bounds) {
+        Pattern pattern = Pattern.compile("(?<![a-z])[czt]:([\\d:,]*)", Pattern.CASE_INSENSITIVE);
+        Matcher matcher = pattern.matcher(bounds);
+        boolean sparse  = false;
+        while (!sparse && matcher.find()) {
+            String spec = matcher.group(1).replaceAll(",+$", ""); // Ignore separators between axes
+            sparse = spec.contains(",") || spec.split(":", -1).length > 2;
+        }
+        return sparse;
+    }
+
+
+    /**
+     * Returns the indices between two coordinates, end included.
+     *
+     * @param start The start coordinate.
+     * @param end   The end coordinate (if negative or too large, the last index).
+     * @param size  The size along the axis.
+     *
+     * @return See above.
+     */
+    private static int[] range(int start, int end, int size) {
+        int last = end < 0 || end >= size ? size - 1 : end;
+        return IntStream.rangeClosed(Math.min(start, last), last).toArray();
+    }
+
+
     /**
      * Determines if the link between the referenced objects and annotations is invalid.
      *
@@ -322,21 +622,61 @@ public class OMEROMacroExtension implements PlugIn, MacroExtension {
 
 
     /**
-     * Filters the objects list to only keep objects from the set user.
+     * Retrieves the existing links between objects of the specified type and an annotation.
      *
-     * @param list The objects list.
-     * @param <T>  The type of objects.
+     * @param type         The object type (singular).
+     * @param ids          The object IDs.
+     * @param annotationId The annotation ID.
+     *
+     * @return A map from the linked object IDs to the link IDs.
      *
-     * @return The filtered list.
+     * @throws ServiceException Cannot connect to OMERO.
+     * @throws OMEROServerError Server error.
      */
-    private <T extends GenericObjectWrapper<?>> List<T> filterUser(List<T> list) {
-        if (user == null) {
-            return list;
-        } else {
-            return list.stream()
-                       .filter(o -> o.getOwner().getId() == user.getId())
-                       .collect(Collectors.toList());
+    private Map<Long, Long> getAnnotationLinks(String type, List<Long> ids, long annotationId)
+    throws ServiceException, OMEROServerError {
+        String query = String.format("select l.parent.id, l.id from %s as l" +
+                                     " where l.child.id = :ann and l.parent.id in (:ids)",
+                                     Entities.annotationLink(type));
+
+        Map<Long, Long> links = new HashMap<>(ids.size());
+        for (int i = 0; i < ids.size(); i += QUERY_BATCH_SIZE) {
+            ParametersI params = new ParametersI();
+            params.addLong("ann", annotationId);
+            params.addIds(ids.subList(i, Math.min(i + QUERY_BATCH_SIZE, ids.size())));
+            for (List<RType> row : ListQuery.projection(client, query, params)) {
+                links.put(((RLong) row.get(0)).getValue(), ((RLong) row.get(1)).getValue());
+            }
+        }
+        return links;
+    }
+
+
+    /**
+     * Replaces directories by the files they contain, down to the depth scanned by the importer.
+     *
+     * @param paths The paths to files or directories.
+     *
+     * @return The paths to the files.
+     *
+     * @throws IOException Cannot read a directory.
+     */
+    private static List<String> expandDirectories(Collection<String> paths) throws IOException {
+        List<String> files = new ArrayList<>(paths.size());
+        for (String path : paths) {
+            Path file = Paths.get(path);
+            if (Files.isDirectory(file)) {
+                try (Stream<Path> contents = Files.walk(file, SCAN_DEPTH)) {
+                    contents.filter(Files::isRegularFile)
+                            .map(Path::toString)
+                            .sorted()
+                            .forEach(files::add);
+                }
+            } else {
+                files.add(path);
+            }
         }
+        return files;
     }
 
 
@@ -372,6 +712,13 @@ public class OMEROMacroExtension implements PlugIn, MacroExtension {
     private GenericAnnotationWrapper<?> getAnnotation(String type, long id) {
         String singularType = singularType(type);
 
+        long groupId = client.getCurrentGroupId();
+
+        GenericObjectWrapper<?> cached = cache.get(groupId, singularType, id);
+        if (cached instanceof GenericAnnotationWrapper<?>) {
+            return (GenericAnnotationWrapper<?>) cached;
+        }
+
         GenericAnnotationWrapper<?> annotation = null;
         try {
             switch (singularType) {
@@ -387,6 +734,7 @@ public class OMEROMacroExtension implements PlugIn, MacroExtension {
         } catch (OMEROServerError | ServiceException | ExecutionException | AccessException e) {
             IJ.error(String.format("Could not retrieve %s: %s", singularType, e.getMessage()));
         }
+        cache.put(groupId, singularType, id, annotation);
         return annotation;
     }
 
@@ -402,6 +750,13 @@ public class OMEROMacroExtension implements PlugIn, MacroExtension {
     private GenericRepositoryObjectWrapper<?> getRepositoryObject(String type, long id) {
         String singularType = singularType(type);
 
+        long groupId = client.getCurrentGroupId();
+
+        GenericObjectWrapper<?> cached = cache.get(groupId, singularType, id);
+        if (cached instanceof GenericRepositoryObjectWrapper<?>) {
+            return (GenericRepositoryObjectWrapper<?>) cached;
+        }
+
         GenericRepositoryObjectWrapper<?> object = null;
         try {
             switch (singularType) {
@@ -429,10 +784,135 @@ public class OMEROMacroExtension implements PlugIn, MacroExtension {
         } catch (ServiceException | AccessException | ExecutionException e) {
             IJ.error(String.format("Could not retrieve %s: %s", singularType, e.getMessage()));
         }
+        cache.put(groupId, singularType, id, object);
         return object;
     }
 
 
+    /**
+     * Lists all the objects of the specified type, without any user filter.
+     *
+     * @param singularType The objects type (singular).
+     * @param type         The objects type, as requested.
+     *
+     * @return The list of object IDs.
+     */
+    private List<Long> listAll(String singularType, String type)
+    throws ServiceException, AccessException, OMEROServerError, ExecutionException {
+        List<Long> results = new ArrayList<>(0);
+        switch (singularType) {
+            case PROJECT:
+                List<ProjectWrapper> projects = client.getProjects();
+                results = toIDs(projects);
+                break;
+            case DATASET:
+                List<DatasetWrapper> datasets = client.getDatasets();
+                results = toIDs(datasets);
+                break;
+            case IMAGE:
+                List<ImageWrapper> images = client.getImages();
+                results = toIDs(images);
+                break;
+            case SCREEN:
+                List<ScreenWrapper> screens = client.getScreens();
+                results = toIDs(screens);
+                break;
+            case PLATE:
+                List<PlateWrapper> plates = client.getPlates();
+                results = toIDs(plates);
+                break;
+            case WELL:
+                List<WellWrapper> wells = client.getWells();
+                results = toIDs(wells);
+                break;
+            case TAG:
+                List<TagAnnotationWrapper> tags = client.getTags();
+                results = toIDs(tags);
+                break;
+            case MAP:
+                List<MapAnnotationWrapper> maps = client.getMapAnnotations();
+                results = toIDs(maps);
+                break;
+            default:
+                String msg = String.format(ERROR_POSSIBLE_VALUES, INVALID, type,
+                                           "projects, datasets, images, screens, plates, wells or tags.");
+                IJ.error(msg);
+        }
+        return results;
+    }
+
+
+    /**
+     * Lists the objects of the specified type with the specified name, without any user filter.
+     *
+     * @param singularType The objects type (singular).
+     * @param type         The objects type, as requested.
+     * @param name         The objects name.
+     *
+     * @return The list of object IDs.
+     */
+    private List<Long> listByName(String singularType, String type, String name)
+    throws ServiceException, AccessException, OMEROServerError, ExecutionException {
+        List<Long> results = new ArrayList<>(0);
+        switch (singularType) {
+            case PROJECT:
+                List<ProjectWrapper> projects = client.getProjects(name);
+                results = toIDs(projects);
+                break;
+            case DATASET:
+                List<DatasetWrapper> datasets = client.getDatasets(name);
+                results = toIDs(datasets);
+                break;
+            case IMAGE:
+                List<ImageWrapper> images = client.getImages(name);
+                results = toIDs(images);
+                break;
+            case TAG:
+                List<TagAnnotationWrapper> tags = client.getTags(name);
+                results = toIDs(tags);
+                break;
+            case MAP:
+                List<MapAnnotationWrapper> maps = client.getMapAnnotations(name);
+                results = toIDs(maps);
+                break;
+            default:
+                String msg = String.format(ERROR_POSSIBLE_VALUES, INVALID, type,
+                                           "projects, datasets, images, screens, plates, wells or tags.");
+                IJ.error(msg);
+        }
+        return results;
+    }
+
+
+    /**
+     * Creates a query listing the objects of the specified type on the server.
+     * <p>If {@code parentId} is null, {@code nameOrParent} is the (optional) objects name, and the user filter
+     * applies. Otherwise, {@code nameOrParent} is the type of the container.
+     *
+     * @param type         The objects type.
+     * @param nameOrParent The objects name or the type of container (can be null).
+     * @param parentId     The container ID (can be null).
+     *
+     * @return The query.
+     *
+     * @throws IllegalArgumentException If the objects cannot be listed this way.
+     */
+    private ListQuery createQuery(String type, String nameOrParent, Long parentId) {
+        ListQuery query = new ListQuery(singularType(type));
+        if (parentId != null) {
+            query.in(singularType(nameOrParent), parentId);
+        } else {
+            if (nameOrParent != null) {
+                query.named(nameOrParent);
+            }
+            if (user != null) {
+                query.ownedBy(user.getId());
+            }
+        }
+        return query;
+    }
+
+
     /**
      * Lists the objects of the specified type linked to a tag.
      *
@@ -724,19 +1204,61 @@ public class OMEROMacroExtension implements PlugIn, MacroExtension {
      * @param imageId The image ID.
      * @param path    The path where the file(s) should be downloaded.
      *
-     * @return The file path. If multiple files were saved, they are comma-delimited.
+     * @return The list of downloaded files.
      */
-    public String downloadImage(long imageId, String path) {
+    public List<File> downloadImageFiles(long imageId, String path) {
         List<File> files = new ArrayList<>(0);
         try {
-            files = client.getImage(imageId).download(client, path);
-        } catch (ServiceException | AccessException | OMEROServerError | ExecutionException | NoSuchElementException e) {
+            files = OriginalFileDownload.download(client, imageId, path);
+        } catch (ServiceException | AccessException | OMEROServerError | ExecutionException | NoSuchElementException |
+                 DSOutOfServiceException | IOException e) {
             IJ.error("Could not download image: " + e.getMessage());
         }
+        return files;
+    }
+
+
+    /**
+     * Downloads the specified image.
+     *
+     * @param imageId The image ID.
+     * @param path    The path where the file(s) should be downloaded.
+     *
+     * @return The file path. If multiple files were saved, they are comma-delimited.
+     */
+    public String downloadImage(long imageId, String path) {
+        List<File> files = downloadImageFiles(imageId, path);
         return files.stream().map(File::toString).collect(Collectors.joining(","));
     }
 
 
+    /**
+     * Downloads the specified images concurrently. Images sharing a fileset are downloaded only once.
+     *
+     * @param ids     The image IDs, separated by commas.
+     * @param path    The path where the files should be downloaded.
+     * @param threads The number of filesets downloaded concurrently.
+     *
+     * @return The downloaded files for each image.
+     */
+    public Map<Long, List<File>> downloadImages(String ids, String path, int threads) {
+        Map<Long, List<File>> files = new LinkedHashMap<>(0);
+        try {
+            List<String> errors = new ArrayList<>(0);
+            files = BatchDownload.download(client, parseIDs(ids), path, threads, errors);
+            if (!errors.isEmpty()) {
+                IJ.error("Could not download images:\n" + String.join("\n", errors));
+            }
+        } catch (ServiceException | OMEROServerError e) {
+            IJ.error("Could not download images: " + e.getMessage());
+        } catch (InterruptedException e) {
+            IJ.error("Could not download images: " + e.getMessage());
+            Thread.currentThread().interrupt();
+        }
+        return files;
+    }
+
+
     /**
      * Imports the specified image file to the desired dataset.
      *
@@ -746,6 +1268,22 @@ public class OMEROMacroExtension implements PlugIn, MacroExtension {
      * @return The list of imported IDs, separated by commas.
      */
     public String importImage(long datasetId, String path) {
+        return importImage(datasetId, path, false);
+    }
+
+
+    /**
+     * Imports the specified image file to the desired dataset.
+     * <p>If {@code skipExisting} is true and the dataset already contains images imported from an identical file
+     * (same name, size and checksum), the IDs of these images are returned and the file is not uploaded.
+     *
+     * @param datasetId    The dataset ID.
+     * @param path         The path to the image file.
+     * @param skipExisting Whether to skip files that were already imported to the dataset.
+     *
+     * @return The list of imported IDs, separated by commas.
+     */
+    public String importImage(long datasetId, String path, boolean skipExisting) {
         String imagePath = path;
         if (path == null) {
             ImagePlus imp = IJ.getImage();
@@ -754,8 +1292,22 @@ public class OMEROMacroExtension implements PlugIn, MacroExtension {
         }
         List<Long> imageIds = new ArrayList<>(0);
         try {
-            imageIds = client.getDataset(datasetId).importImage(client, imagePath);
-        } catch (ServiceException | AccessException | ExecutionException | OMEROServerError | NoSuchElementException e) {
+            if (skipExisting) {
+                List<String>            files    = expandDirectories(Collections.singletonList(imagePath));
+                Map<String, List<Long>> existing = ImportedFiles.findImported(client, datasetId, files);
+                // A directory is only skipped if all its files were imported
+                if (!files.isEmpty() && existing.size() == files.size()) {
+                    imageIds = existing.values().stream()
+                                       .flatMap(List::stream)
+                                       .distinct()
+                                       .collect(Collectors.toList());
+                }
+            }
+            if (imageIds.isEmpty()) {
+                imageIds = client.getDataset(datasetId).importImage(client, imagePath);
+            }
+        } catch (ServiceException | AccessException | ExecutionException | OMEROServerError |
+                 NoSuchElementException | IOException e) {
             IJ.error("Could not import image: " + e.getMessage());
         }
         if (path == null) {
@@ -770,40 +1322,150 @@ public class OMEROMacroExtension implements PlugIn, MacroExtension {
 
 
     /**
-     * Adds a file to an object.
+     * Uploads an image to the desired dataset, writing its planes directly to OMERO without a temporary file.
      *
-     * @param type The object type.
-     * @param id   The object ID.
-     * @param path The path to the file.
+     * @param imp       The image in ImageJ.
+     * @param datasetId The dataset ID.
      *
-     * @return The uploaded file ID.
+     * @return The new image ID.
      */
-    public long addFile(String type, long id, String path) {
-        long fileId = -1;
-
-        File file = new File(path);
-
-        GenericRepositoryObjectWrapper<?> object = getRepositoryObject(type, id);
-        if (object != null && file.isFile()) {
-            try {
-                fileId = object.addFile(client, file);
-            } catch (ExecutionException e) {
-                IJ.error("Could not add file to object: " + e.getMessage());
-            } catch (InterruptedException e) {
-                IJ.error(e.getMessage());
-                Thread.currentThread().interrupt();
-            }
+    public long uploadImage(ImagePlus imp, long datasetId) {
+        long imageId = -1L;
+        try {
+            imageId = PixelsUpload.upload(client, imp, datasetId);
+            cache.invalidate(DATASET, datasetId);
+        } catch (IllegalArgumentException | DSOutOfServiceException | ServerError e) {
+            IJ.error("Could not upload image: " + e.getMessage());
         }
-        return fileId;
+        return imageId;
     }
 
 
     /**
-     * Deletes the file with the specified ID from OMERO.
+     * Queues the specified image file for import to the desired dataset, without waiting for the upload.
+     * <p>If the path is null, the current image is saved to a temporary file, which is deleted after the upload.
      *
-     * @param id The file ID.
+     * @param datasetId The dataset ID.
+     * @param path      The path to the image file.
+     *
+     * @return The number of imports queued since the last call to {@link #awaitImports()}.
      */
-    public void deleteFile(long id) {
+    public int importImageAsync(long datasetId, String path) {
+        int queued = 0;
+        try {
+            String imagePath = path == null ? saveTemporaryImage(IJ.getImage()) : path;
+            queued = imports.submit(client, datasetId, imagePath, path == null);
+        } catch (IOException | RejectedExecutionException e) {
+            IJ.error("Could not queue image import: " + e.getMessage());
+        }
+        return queued;
+    }
+
+
+    /**
+     * Waits for the queued imports to finish.
+     *
+     * @return The list of imported IDs.
+     */
+    public List<Long> awaitImports() {
+        List<Long> imageIds = new ArrayList<>(0);
+        try {
+            List<ImportResult> results = imports.await();
+            results.forEach(r -> imageIds.addAll(r.getIds()));
+            reportImportErrors(results);
+        } catch (InterruptedException e) {
+            IJ.error("Could not import images: " + e.getMessage());
+            Thread.currentThread().interrupt();
+        }
+        return imageIds;
+    }
+
+
+    /**
+     * Imports many files to the desired dataset through a single import session, uploading them in parallel.
+     * <p>The number of filesets imported in parallel is the number of import workers.
+     * <p>If {@code skipExisting} is true, filesets whose files were all already imported to the dataset (same name,
+     * size and checksum) are not uploaded, and the IDs of the existing images are returned instead.
+     *
+     * @param datasetId    The dataset ID.
+     * @param paths        The paths to the image files or directories, separated by commas.
+     * @param skipExisting Whether to skip files that were already imported to the dataset.
+     *
+     * @return The imported IDs for each imported file.
+     */
+    public Map<String, List<Long>> importImages(long datasetId, String paths, boolean skipExisting) {
+        Map<String, List<Long>> imported = new LinkedHashMap<>(0);
+
+        List<String> files = Arrays.stream(paths.split(","))
+                                   .map(String::trim)
+                                   .filter(p -> !p.isEmpty())
+                                   .collect(Collectors.toList());
+        try {
+            List<ImportResult> results = files.isEmpty() ?
+                                         Collections.emptyList() :
+                                         BatchImport.importFiles(client, datasetId,
+                                                                 files.toArray(new String[0]),
+                                                                 imports.getWorkers(), skipExisting);
+            results.stream()
+                   .filter(r -> r.getError() == null)
+                   .forEach(r -> imported.put(r.getPath(), r.getIds()));
+            reportImportErrors(results);
+            cache.invalidate(DATASET, datasetId);
+        } catch (ServiceException | OMEROServerError | IOException e) {
+            IJ.error("Could not import images: " + e.getMessage());
+        } catch (InterruptedException e) {
+            IJ.error("Could not import images: " + e.getMessage());
+            Thread.currentThread().interrupt();
+        }
+        return imported;
+    }
+
+
+    /**
+     * Sets the number of background workers uploading queued images.
+     *
+     * @param workers The number of workers.
+     */
+    public void setImportWorkers(int workers) {
+        imports.setWorkers(workers);
+    }
+
+
+    /**
+     * Adds a file to an object.
+     *
+     * @param type The object type.
+     * @param id   The object ID.
+     * @param path The path to the file.
+     *
+     * @return The uploaded file ID.
+     */
+    public long addFile(String type, long id, String path) {
+        long fileId = -1;
+
+        File file = new File(path);
+
+        GenericRepositoryObjectWrapper<?> object = getRepositoryObject(type, id);
+        if (object != null && file.isFile()) {
+            try {
+                fileId = object.addFile(client, file);
+            } catch (ExecutionException e) {
+                IJ.error("Could not add file to object: " + e.getMessage());
+            } catch (InterruptedException e) {
+                IJ.error(e.getMessage());
+                Thread.currentThread().interrupt();
+            }
+        }
+        return fileId;
+    }
+
+
+    /**
+     * Deletes the file with the specified ID from OMERO.
+     *
+     * @param id The file ID.
+     */
+    public void deleteFile(long id) {
         try {
             client.deleteFile(id);
         } catch (ServiceException | AccessException | ExecutionException | OMEROServerError e) {
@@ -1001,6 +1663,7 @@ public class OMEROMacroExtension implements PlugIn, MacroExtension {
         try {
             if (object != null) {
                 client.delete(object);
+                cache.invalidate(singularType(type), id);
             }
         } catch (ServiceException | AccessException | ExecutionException | OMEROServerError e) {
             IJ.error("Could not delete " + type + ": " + e.getMessage());
@@ -1011,55 +1674,119 @@ public class OMEROMacroExtension implements PlugIn, MacroExtension {
     }
 
 
+    /**
+     * Deletes many objects of the same type on OMERO, with a single delete command.
+     *
+     * @param type  The objects type.
+     * @param ids   The object IDs, separated by commas.
+     * @param async Whether to return without waiting for the command to finish.
+     *
+     * @return The delete command handle, 0 if the command was waited for, or -1 if it failed.
+     */
+    public int deleteMany(String type, String ids, boolean async) {
+        String     singularType = singularType(type);
+        List<Long> objectIds    = parseIDs(ids);
+
+        int handle = -1;
+        try {
+            List<IObject> objects = objectIds.stream()
+                                             .map(id -> Entities.unloaded(singularType, id))
+                                             .collect(Collectors.toList());
+            DeleteJob job = new DeleteJob(client, objects);
+            if (async) {
+                handle = ++lastDeletionId;
+                deletions.put(handle, job);
+            } else {
+                job.await();
+                handle = 0;
+            }
+        } catch (IllegalArgumentException | ExecutionException | DSOutOfServiceException | DSAccessException |
+                 ServerError e) {
+            IJ.error("Could not delete " + type + ": " + e.getMessage());
+        } catch (InterruptedException e) {
+            IJ.error(e.getMessage());
+            Thread.currentThread().interrupt();
+        } finally {
+            objectIds.forEach(id -> cache.invalidate(singularType, id));
+        }
+        return handle;
+    }
+
+
+    /**
+     * Retrieves the status of a delete command. Finished commands are forgotten once their status is returned.
+     *
+     * @param handle The delete command handle.
+     *
+     * @return "running", "done", or "failed" followed by the server error.
+     */
+    public String deleteStatus(int handle) {
+        String status = "";
+
+        DeleteJob job = deletions.get(handle);
+        if (job == null) {
+            IJ.error("Delete command does not exist: " + handle);
+        } else {
+            try {
+                status = job.getStatus();
+                if (!DeleteJob.RUNNING.equals(status)) {
+                    deletions.remove(handle);
+                }
+            } catch (InterruptedException e) {
+                IJ.error(e.getMessage());
+                Thread.currentThread().interrupt();
+            }
+        }
+        return status;
+    }
+
+
+    /**
+     * Waits for a delete command to finish, then forgets it.
+     *
+     * @param handle The delete command handle.
+     *
+     * @return The number of targeted objects.
+     */
+    public int awaitDelete(int handle) {
+        int deleted = 0;
+
+        DeleteJob job = deletions.get(handle);
+        if (job == null) {
+            IJ.error("Delete command does not exist: " + handle);
+        } else {
+            try {
+                job.await();
+                deleted = job.size();
+                deletions.remove(handle);
+            } catch (ServerError e) {
+                deletions.remove(handle);
+                IJ.error("Could not delete objects: " + e.getMessage());
+            } catch (InterruptedException e) {
+                IJ.error(e.getMessage());
+                Thread.currentThread().interrupt();
+            }
+        }
+        return deleted;
+    }
+
+
     /**
      * Lists the objects of the specified type.
      *
      * @param type The objects type.
      *
-     * @return The comma-delimited list of object IDs.
+     * @return The list of object IDs.
      */
-    public String list(String type) {
+    public List<Long> listIDs(String type) {
         String singularType = singularType(type);
 
-        String results = "";
+        List<Long> results = new ArrayList<>(0);
         try {
-            switch (singularType) {
-                case PROJECT:
-                    List<ProjectWrapper> projects = client.getProjects();
-                    results = listToIDs(filterUser(projects));
-                    break;
-                case DATASET:
-                    List<DatasetWrapper> datasets = client.getDatasets();
-                    results = listToIDs(filterUser(datasets));
-                    break;
-                case IMAGE:
-                    List<ImageWrapper> images = client.getImages();
-                    results = listToIDs(filterUser(images));
-                    break;
-                case SCREEN:
-                    List<ScreenWrapper> screens = client.getScreens();
-                    results = listToIDs(filterUser(screens));
-                    break;
-                case PLATE:
-                    List<PlateWrapper> plates = client.getPlates();
-                    results = listToIDs(filterUser(plates));
-                    break;
-                case WELL:
-                    List<WellWrapper> wells = client.getWells();
-                    results = listToIDs(filterUser(wells));
-                    break;
-                case TAG:
-                    List<TagAnnotationWrapper> tags = client.getTags();
-                    results = listToIDs(filterUser(tags));
-                    break;
-                case MAP:
-                    List<MapAnnotationWrapper> maps = client.getMapAnnotations();
-                    results = listToIDs(filterUser(maps));
-                    break;
-                default:
-                    String msg = String.format(ERROR_POSSIBLE_VALUES, INVALID, type,
-                                               "projects, datasets, images, screens, plates, wells or tags.");
-                    IJ.error(msg);
+            if (user != null && ListQuery.isSupported(singularType)) {
+                results = new ListQuery(singularType).ownedBy(user.getId()).ids(client);
+            } else {
+                results = listAll(singularType, type);
             }
         } catch (ServiceException | AccessException | OMEROServerError | ExecutionException e) {
             IJ.error("Could not retrieve " + type + ": " + e.getMessage());
@@ -1074,53 +1801,22 @@ public class OMEROMacroExtension implements PlugIn, MacroExtension {
      * @param type The objects type.
      * @param name The objects name.
      *
-     * @return The comma-delimited list of object IDs.
+     * @return The list of object IDs.
      */
-    public String list(String type, String name) {
+    public List<Long> listIDs(String type, String name) {
         String singularType = singularType(type);
 
-        String results = "";
+        List<Long> results = new ArrayList<>(0);
         try {
-            switch (singularType) {
-                case PROJECT:
-                    List<ProjectWrapper> projects = client.getProjects(name);
-                    results = listToIDs(filterUser(projects));
-                    break;
-                case DATASET:
-                    List<DatasetWrapper> datasets = client.getDatasets(name);
-                    results = listToIDs(filterUser(datasets));
-                    break;
-                case IMAGE:
-                    List<ImageWrapper> images = client.getImages(name);
-                    results = listToIDs(filterUser(images));
-                    break;
-                case SCREEN:
-                    List<ScreenWrapper> screens = client.getScreens();
-                    screens.removeIf(s -> !name.equals(s.getName()));
-                    results = listToIDs(filterUser(screens));
-                    break;
-                case PLATE:
-                    List<PlateWrapper> plates = client.getPlates();
-                    plates.removeIf(p -> !name.equals(p.getName()));
-                    results = listToIDs(filterUser(plates));
-                    break;
-                case WELL:
-                    List<WellWrapper> wells = client.getWells();
-                    wells.removeIf(w -> !name.equals(w.getName()));
-                    results = listToIDs(filterUser(wells));
-                    break;
-                case TAG:
-                    List<TagAnnotationWrapper> tags = client.getTags(name);
-                    results = listToIDs(filterUser(tags));
-                    break;
-                case MAP:
-                    List<MapAnnotationWrapper> maps = client.getMapAnnotations(name);
-                    results = listToIDs(filterUser(maps));
-                    break;
-                default:
-                    String msg = String.format(ERROR_POSSIBLE_VALUES, INVALID, type,
-                                               "projects, datasets, images, screens, plates, wells or tags.");
-                    IJ.error(msg);
+            boolean hcs = SCREEN.equals(singularType) || PLATE.equals(singularType) || WELL.equals(singularType);
+            if (hcs || (user != null && ListQuery.isSupported(singularType))) {
+                ListQuery query = new ListQuery(singularType).named(name);
+                if (user != null) {
+                    query.ownedBy(user.getId());
+                }
+                results = query.ids(client);
+            } else {
+                results = listByName(singularType, type, name);
             }
         } catch (ServiceException | AccessException | OMEROServerError | ExecutionException e) {
             IJ.error(String.format("Could not retrieve %s with name \"%s\": %s", type, name, e.getMessage()));
@@ -1136,9 +1832,9 @@ public class OMEROMacroExtension implements PlugIn, MacroExtension {
      * @param parent The type of container.
      * @param id     The container id.
      *
-     * @return The comma-delimited list of object IDs.
+     * @return The list of object IDs.
      */
-    public String list(String type, String parent, long id) {
+    public List<Long> listIDs(String type, String parent, long id) {
         String singularParent = singularType(parent);
 
         Collection<? extends GenericObjectWrapper<?>> objects = new ArrayList<>(0);
@@ -1178,7 +1874,175 @@ public class OMEROMacroExtension implements PlugIn, MacroExtension {
         } catch (ServiceException | AccessException | ExecutionException | OMEROServerError e) {
             IJ.error(String.format(ERROR_RETRIEVE_IN, type, parent, e.getMessage()));
         }
-        return listToIDs(objects);
+        return toIDs(objects);
+    }
+
+
+    /**
+     * Lists the objects of the specified type.
+     *
+     * @param type The objects type.
+     *
+     * @return The comma-delimited list of object IDs.
+     */
+    public String list(String type) {
+        return joinIDs(listIDs(type));
+    }
+
+
+    /**
+     * Lists the objects of the specified type with the specified name.
+     *
+     * @param type The objects type.
+     * @param name The objects name.
+     *
+     * @return The comma-delimited list of object IDs.
+     */
+    public String list(String type, String name) {
+        return joinIDs(listIDs(type, name));
+    }
+
+
+    /**
+     * Lists the objects of the specified type inside the specified container.
+     *
+     * @param type   The object type.
+     * @param parent The type of container.
+     * @param id     The container id.
+     *
+     * @return The comma-delimited list of object IDs.
+     */
+    public String list(String type, String parent, long id) {
+        return joinIDs(listIDs(type, parent, id));
+    }
+
+
+    /**
+     * Lists the objects of the specified type, along with the requested columns, in a single query.
+     * <p>If {@code parentId} is null, {@code nameOrParent} is the (optional) objects name, and the user filter set
+     * by {@link #setUser(String)} applies. Otherwise, {@code nameOrParent} is the type of the container.
+     *
+     * @param type         The objects type.
+     * @param columns      The comma-delimited columns: name, owner, date, sizeX, sizeY, sizeZ, sizeC or sizeT.
+     * @param nameOrParent The objects name or the type of container (can be null).
+     * @param parentId     The container ID (can be null).
+     *
+     * @return A ResultsTable with the objects IDs in the "ID" column, followed by the requested columns.
+     */
+    public ResultsTable listWithColumns(String type, String columns, String nameOrParent, Long parentId) {
+        ResultsTable rt = new ResultsTable();
+
+        List<String> columnList = Arrays.stream(columns.split(","))
+                                        .map(String::trim)
+                                        .filter(c -> !c.isEmpty())
+                                        .collect(Collectors.toList());
+        try {
+            List<List<Object>> rows = createQuery(type, nameOrParent, parentId).values(client, columnList);
+            for (List<Object> row : rows) {
+                rt.incrementCounter();
+                rt.addValue("ID", ((Number) row.get(0)).doubleValue());
+                for (int i = 0; i < columnList.size(); i++) {
+                    Object value = row.get(i + 1);
+                    if (value instanceof Number) {
+                        rt.addValue(columnList.get(i), ((Number) value).doubleValue());
+                    } else {
+                        rt.addValue(columnList.get(i), value == null ? "" : value.toString());
+                    }
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            IJ.error(String.format(ERROR_POSSIBLE_VALUES, "Could not list " + type, e.getMessage(), ListQuery.COLUMNS));
+        } catch (ServiceException | OMEROServerError e) {
+            IJ.error("Could not list " + type + ": " + e.getMessage());
+        }
+        return rt;
+    }
+
+
+    /**
+     * Counts the objects of the specified type on the server, without retrieving them.
+     * <p>If {@code parentId} is null, {@code nameOrParent} is the (optional) objects name, and the user filter set
+     * by {@link #setUser(String)} applies. Otherwise, {@code nameOrParent} is the type of the container.
+     *
+     * @param type         The objects type.
+     * @param nameOrParent The objects name or the type of container (can be null).
+     * @param parentId     The container ID (can be null).
+     *
+     * @return The number of objects, -1 if they could not be counted.
+     */
+    public long count(String type, String nameOrParent, Long parentId) {
+        long count = -1L;
+        try {
+            ListQuery query = createQuery(type, nameOrParent, parentId);
+            count = query.count(client);
+        } catch (IllegalArgumentException | ServiceException | OMEROServerError e) {
+            IJ.error("Could not count " + type + ": " + e.getMessage());
+        }
+        return count;
+    }
+
+
+    /**
+     * Opens a cursor listing the objects of the specified type, page by page.
+     * <p>If {@code parentId} is null, {@code nameOrParent} is the (optional) objects name, and the user filter set
+     * by {@link #setUser(String)} applies. Otherwise, {@code nameOrParent} is the type of the container.
+     *
+     * @param type         The objects type.
+     * @param pageSize     The maximum number of IDs returned by each call to {@link #listNext(int)}.
+     * @param nameOrParent The objects name or the type of container (can be null).
+     * @param parentId     The container ID (can be null).
+     *
+     * @return The cursor ID, -1 if it could not be opened.
+     */
+    public int openCursor(String type, int pageSize, String nameOrParent, Long parentId) {
+        int cursorId = -1;
+        try {
+            ListQuery query = createQuery(type, nameOrParent, parentId);
+            cursorId = ++lastCursorId;
+            cursors.put(cursorId, new ListCursor(query, pageSize));
+        } catch (IllegalArgumentException e) {
+            IJ.error("Could not open cursor: " + e.getMessage());
+        }
+        return cursorId;
+    }
+
+
+    /**
+     * Retrieves the next page of IDs from a cursor.
+     *
+     * @param cursorId The cursor ID.
+     *
+     * @return The comma-delimited list of object IDs, empty when all the objects have been listed (the cursor is then
+     * closed).
+     */
+    public String listNext(int cursorId) {
+        String results = "";
+
+        ListCursor cursor = cursors.get(cursorId);
+        if (cursor == null) {
+            IJ.error("Cursor does not exist: " + cursorId);
+        } else {
+            try {
+                List<Long> ids = cursor.next(client);
+                if (ids.isEmpty()) {
+                    cursors.remove(cursorId);
+                }
+                results = joinIDs(ids);
+            } catch (ServiceException | OMEROServerError e) {
+                IJ.error("Could not retrieve next page: " + e.getMessage());
+            }
+        }
+        return results;
+    }
+
+
+    /**
+     * Closes a cursor.
+     *
+     * @param cursorId The cursor ID.
+     */
+    public void closeCursor(int cursorId) {
+        cursors.remove(cursorId);
     }
 
 
@@ -1188,6 +2052,8 @@ public class OMEROMacroExtension implements PlugIn, MacroExtension {
      * @param username The other user's name.
      */
     public void sudo(String username) {
+        cache.clear();
+        prefetcher.clear();
         switched = client;
         try {
             client = switched.sudoGetUser(username);
@@ -1203,6 +2069,8 @@ public class OMEROMacroExtension implements PlugIn, MacroExtension {
      */
     public void endSudo() {
         if (switched != null) {
+            cache.clear();
+            prefetcher.clear();
             client = switched;
             switched = null;
         } else {
@@ -1264,132 +2132,610 @@ public class OMEROMacroExtension implements PlugIn, MacroExtension {
             }
         } catch (ServiceException | AccessException | ExecutionException e) {
             IJ.error(String.format("Cannot link %s and %s: %s", type1, type2, e.getMessage()));
+        } finally {
+            // The objects retrieved above were cached before the link
+            cache.invalidate(t1, id1);
+            cache.invalidate(t2, id2);
+        }
+    }
+
+
+    /**
+     * Unlinks two objects.
+     *
+     * @param type1 The first object type.
+     * @param id1   The first object ID.
+     * @param type2 The second object type.
+     * @param id2   The second object ID.
+     */
+    public void unlink(String type1, long id1, String type2, long id2) {
+        String t1 = singularType(type1);
+        String t2 = singularType(type2);
+
+        Map<String, Long> map = new HashMap<>(2);
+        map.put(t1, id1);
+        map.put(t2, id2);
+
+        Map<String, Long> objMap = new HashMap<>(2);
+        objMap.computeIfAbsent(PROJECT, map::get);
+        objMap.computeIfAbsent(DATASET, map::get);
+        objMap.computeIfAbsent(IMAGE, map::get);
+        objMap.computeIfAbsent(WELL, map::get);
+        objMap.computeIfAbsent(PLATE, map::get);
+        objMap.computeIfAbsent(SCREEN, map::get);
+
+        Map<String, Long> annMap = new HashMap<>(1);
+        annMap.computeIfAbsent(TAG, map::get);
+        annMap.computeIfAbsent(MAP, map::get);
+
+        try {
+            if (isInvalidLink(objMap, annMap)) {
+                IJ.error(String.format("Cannot unlink %s and %s", type1, type2));
+            } else if (annMap.size() == 1) { // Unlink annotation from repository object
+                String ann = annMap.keySet().iterator().next();
+                String obj = ann.equals(t1) ? t2 : t1;
+
+                GenericRepositoryObjectWrapper<?> object = getRepositoryObject(obj, map.get(obj));
+                if (object != null) {
+                    object.unlink(client, getAnnotation(ann, annMap.get(ann)));
+                }
+            } else { // Or unlink dataset from image or project
+                Long projectId = map.get(PROJECT);
+                Long datasetId = map.get(DATASET);
+                Long imageId   = map.get(IMAGE);
+
+                DatasetWrapper dataset = client.getDataset(datasetId);
+                if (projectId != null) {
+                    client.getProject(projectId).removeDataset(client, dataset);
+                } else {
+                    dataset.removeImage(client, client.getImage(imageId));
+                }
+            }
+        } catch (ServiceException | AccessException | ExecutionException | OMEROServerError e) {
+            IJ.error(String.format("Cannot unlink %s and %s: %s", type1, type2, e.getMessage()));
+        } catch (InterruptedException e) {
+            IJ.error(String.format("Cannot unlink %s and %s: %s", type1, type2, e.getMessage()));
+            Thread.currentThread().interrupt();
+        } finally {
+            // The objects retrieved above were cached before the unlink
+            cache.invalidate(t1, id1);
+            cache.invalidate(t2, id2);
+        }
+    }
+
+
+    /**
+     * Links many objects of the same type to an annotation, skipping existing links.
+     *
+     * @param type           The objects type.
+     * @param ids            The object IDs, separated by commas.
+     * @param annotationType The annotation type.
+     * @param annotationId   The annotation ID.
+     *
+     * @return The number of new links.
+     */
+    public int linkMany(String type, String ids, String annotationType, long annotationId) {
+        String     singularType = singularType(type);
+        String     annType      = singularType(annotationType);
+        List<Long> objectIds    = parseIDs(ids);
+
+        int created = 0;
+        try {
+            Map<Long, Long> existing = getAnnotationLinks(singularType, objectIds, annotationId);
+            List<IObject> links = objectIds.stream()
+                                           .filter(id -> !existing.containsKey(id))
+                                           .map(id -> Entities.annotationLink(singularType, id,
+                                                                              annType, annotationId))
+                                           .collect(Collectors.toList());
+
+            IUpdatePrx update = client.getGateway().getUpdateService(client.getCtx());
+            for (int i = 0; i < links.size(); i += SAVE_BATCH_SIZE) {
+                int end = Math.min(i + SAVE_BATCH_SIZE, links.size());
+                update.saveArray(links.subList(i, end));
+                created = end;
+            }
+        } catch (IllegalArgumentException | ServiceException | OMEROServerError |
+                 DSOutOfServiceException | ServerError e) {
+            IJ.error(String.format("Cannot link %s and %s: %s", type, annotationType, e.getMessage()));
+        } finally {
+            objectIds.forEach(id -> cache.invalidate(singularType, id));
+            cache.invalidate(annType, annotationId);
+        }
+        return created;
+    }
+
+
+    /**
+     * Unlinks many objects of the same type from an annotation, with a single delete command.
+     *
+     * @param type           The objects type.
+     * @param ids            The object IDs, separated by commas.
+     * @param annotationType The annotation type.
+     * @param annotationId   The annotation ID.
+     *
+     * @return The number of removed links.
+     */
+    public int unlinkMany(String type, String ids, String annotationType, long annotationId) {
+        String     singularType = singularType(type);
+        String     annType      = singularType(annotationType);
+        List<Long> objectIds    = parseIDs(ids);
+
+        int removed = 0;
+        try {
+            if (!TAG.equals(annType) && !MAP.equals(annType)) {
+                throw new IllegalArgumentException("Invalid annotation type: " + annotationType);
+            }
+            List<IObject> links = getAnnotationLinks(singularType, objectIds, annotationId)
+                    .values()
+                    .stream()
+                    .map(id -> Entities.unloadedAnnotationLink(singularType, id))
+                    .collect(Collectors.toList());
+            if (!links.isEmpty()) {
+                new DeleteJob(client, links).await();
+            }
+            removed = links.size();
+        } catch (IllegalArgumentException | ServiceException | OMEROServerError | ExecutionException |
+                 DSOutOfServiceException | DSAccessException | ServerError e) {
+            IJ.error(String.format("Cannot unlink %s and %s: %s", type, annotationType, e.getMessage()));
+        } catch (InterruptedException e) {
+            IJ.error(String.format("Cannot unlink %s and %s: %s", type, annotationType, e.getMessage()));
+            Thread.currentThread().interrupt();
+        } finally {
+            objectIds.forEach(id -> cache.invalidate(singularType, id));
+            cache.invalidate(annType, annotationId);
+        }
+        return removed;
+    }
+
+
+    /**
+     * Retrieves the name of an object.
+     *
+     * @param type The object type.
+     * @param id   The object ID.
+     *
+     * @return The object name.
+     */
+    public String getName(String type, long id) {
+        String name = "";
+
+        GenericObjectWrapper<?> object = getObject(type, id);
+        if (object != null) {
+            if (object instanceof GenericRepositoryObjectWrapper<?>) {
+                name = ((GenericRepositoryObjectWrapper<?>) object).getName();
+            } else if (object instanceof TagAnnotationWrapper) {
+                name = ((TagAnnotationWrapper) object).getName();
+            } else if (object instanceof MapAnnotationWrapper) {
+                MapAnnotationWrapper map = (MapAnnotationWrapper) object;
+                name = map.getContentAsEntryList()
+                          .stream()
+                          .map(e -> e.getKey() + "\t" + e.getValue())
+                          .collect(Collectors.joining(String.format("%n")));
+            }
+        }
+        return name;
+    }
+
+
+    /**
+     * Opens an image with optional bounds. The bounds are in the form "x:min:max" with max included. Each of XYCZT is
+     * optional, min and max are also optional: "x:0:100 y::200 z:5: t::"
+     * <p>A resolution level of pyramidal images can be added, e.g. "level:2": bounds are then in the coordinates of
+     * that level.
+     * <p>CZT planes can also be selected with lists and steps, e.g. "c:1,3 t:0:200:10": only these planes are read.
+     * <p>If roi is "virtual", the planes are only read from OMERO when they are needed.
+     *
+     * @param id  The image ID.
+     * @param roi The ROI ID, XYCZT bounds or "virtual".
+     *
+     * @return The image, as an {@link ImagePlus}.
+     */
+    public ImagePlus getImage(long id, String roi) {
+        ImagePlus imp = null;
+        try {
+            if (roi == null) {
+                imp = prefetcher.take(id);
+            } else {
+                prefetcher.discard(id);
+            }
+            if (imp == null) {
+                if ("virtual".equalsIgnoreCase(roi)) {
+                    imp = openVirtual(id);
+                } else if (roi == null) {
+                    imp = loadImage(id);
+                } else {
+                    final Long roiId = safeParseLong(roi);
+                    if (roiId != null) {
+                        ROIWrapper oRoi = getROI(id, roiId);
+                        imp = client.getImage(id).toImagePlus(client, oRoi);
+                    } else if (readThreads > 1 || pixelCache != null || extractLevel(roi) >= 0 || isSparse(roi)) {
+                        imp = readRegion(id, roi);
+                    } else {
+                        Bounds b = extractBounds(roi);
+                        imp = client.getImage(id).toImagePlus(client, b);
+                    }
+                }
+            }
+        } catch (ServiceException | AccessException | OMEROServerError | ExecutionException |
+                 DSOutOfServiceException | NoSuchElementException | IllegalArgumentException e) {
+            IJ.error("Could not retrieve image: " + e.getMessage());
+        } catch (InterruptedException e) {
+            IJ.error("Could not retrieve image: " + e.getMessage());
+            Thread.currentThread().interrupt();
+        }
+        return imp;
+    }
+
+
+    /**
+     * Opens a whole image, through the pixel reader if planes are read in parallel or cached on disk.
+     * <p>Prefetched images are loaded the same way.
+     *
+     * @param id The image ID.
+     *
+     * @return The image, as an {@link ImagePlus}.
+     *
+     * @throws ServiceException        Cannot connect to OMERO.
+     * @throws AccessException         Cannot access data.
+     * @throws ExecutionException      A Facility can't be retrieved or instantiated.
+     * @throws OMEROServerError        Server error.
+     * @throws DSOutOfServiceException Cannot connect to OMERO.
+     * @throws InterruptedException    The thread was interrupted.
+     */
+    private ImagePlus loadImage(long id)
+    throws ServiceException, AccessException, ExecutionException, OMEROServerError, DSOutOfServiceException,
+           InterruptedException {
+        ImagePlus imp;
+        if (readThreads > 1 || pixelCache != null) {
+            imp = readRegion(id, "");
+        } else {
+            imp = client.getImage(id).toImagePlus(client);
         }
+        return imp;
+    }
+
+
+    /**
+     * Opens the region of an image enclosing a ROI.
+     *
+     * @param imageId The image ID.
+     * @param roiId   The ROI ID.
+     *
+     * @return The image, as an {@link ImagePlus}.
+     */
+    public ImagePlus getImageFromROI(long imageId, long roiId) {
+        return getImage(imageId, String.valueOf(roiId));
+    }
+
+
+    /**
+     * Opens the regions of an image enclosing its ROIs, through a single pixel session.
+     *
+     * @param imageId The image ID.
+     * @param roiIds  The ROI IDs, separated by commas (if null or empty, all the ROIs of the image).
+     *
+     * @return The images, in the order of the ROI IDs, with null for ROIs which are not on the image or lie outside
+     * of it.
+     */
+    public List<ImagePlus> getImagesFromROIs(long imageId, String roiIds) {
+        List<ImagePlus> images = new ArrayList<>(0);
+        try {
+            List<Long> ids = roiIds == null || roiIds.trim().isEmpty() ? null : parseIDs(roiIds);
+            if (ids != null && ids.isEmpty()) {
+                return images;
+            }
+            List<ROIWrapper> rois = loadROIs(imageId, ids);
+            if (ids != null) {
+                Map<Long, ROIWrapper> byId = rois.stream().collect(Collectors.toMap(ROIWrapper::getId, r -> r));
+                rois = ids.stream().map(byId::get).collect(Collectors.toList());
+            }
+            try (PixelReader reader = openReader(imageId)) {
+                images = RoiCrops.read(reader, rois);
+            }
+        } catch (ServiceException | OMEROServerError | DSOutOfServiceException | NoSuchElementException e) {
+            IJ.error("Could not retrieve images: " + e.getMessage());
+        }
+        return images;
+    }
+
+
+    /**
+     * Projects a range of slices of an image on the server, so that only the projected planes are downloaded.
+     *
+     * @param id        The image ID.
+     * @param algorithm The projection algorithm: "max", "mean" or "sum".
+     * @param zStart    The first slice (starting from 0).
+     * @param zEnd      The last slice (included).
+     * @param c         The channel index (if null, all channels).
+     * @param t         The frame index (if null, all frames).
+     *
+     * @return The projection, as an {@link ImagePlus}.
+     */
+    public ImagePlus getProjection(long id, String algorithm, int zStart, int zEnd, Integer c, Integer t) {
+        ImagePlus imp = null;
+        try {
+            ProjectionType type;
+            String         prefix;
+            switch (algorithm.toLowerCase(Locale.ROOT)) {
+                case "max":
+                    type = ProjectionType.MAXIMUMINTENSITY;
+                    prefix = "MAX_";
+                    break;
+                case "mean":
+                    type = ProjectionType.MEANINTENSITY;
+                    prefix = "AVG_";
+                    break;
+                case "sum":
+                    type = ProjectionType.SUMINTENSITY;
+                    prefix = "SUM_";
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown projection: " + algorithm);
+            }
+            try (PixelReader reader = openReader(id)) {
+                int[] cs = c == null ? range(0, -1, reader.getSizeC()) : new int[]{c};
+                int[] ts = t == null ? range(0, -1, reader.getSizeT()) : new int[]{t};
+                imp = reader.project(prefix + reader.getName(), type, zStart, zEnd, cs, ts);
+            }
+        } catch (ServiceException | OMEROServerError | DSOutOfServiceException | NoSuchElementException |
+                 IllegalArgumentException e) {
+            IJ.error("Could not project image: " + e.getMessage());
+        }
+        return imp;
+    }
+
+
+    /**
+     * Retrieves ROIs and their shapes with a single query, checking on the server that they belong to the specified
+     * image.
+     *
+     * @param imageId The image ID.
+     * @param roiIds  The ROI IDs (if null, all the ROIs of the image).
+     *
+     * @return The ROIs, sorted by ID.
+     *
+     * @throws ServiceException Cannot connect to OMERO.
+     * @throws OMEROServerError Server error.
+     */
+    private List<ROIWrapper> loadROIs(long imageId, Collection<Long> roiIds)
+    throws ServiceException, OMEROServerError {
+        String query = "select distinct r from Roi as r left outer join fetch r.shapes" +
+                       " where r.image.id = :image";
+        ParametersI params = new ParametersI();
+        params.addLong("image", imageId);
+        if (roiIds != null) {
+            query += " and r.id in (:ids)";
+            params.addIds(roiIds);
+        }
+        query += " order by r.id";
+        List<IObject> rois;
+        try {
+            rois = client.getQueryService().findAllByQuery(query, params);
+        } catch (ServerError e) {
+            throw new OMEROServerError("Could not retrieve ROIs of image " + imageId, e);
+        }
+        return rois.stream()
+                   .map(r -> new ROIWrapper(new ROIData((omero.model.Roi) r)))
+                   .collect(Collectors.toList());
+    }
+
+
+    /**
+     * Retrieves a ROI and its shapes, checking on the server that it belongs to the specified image.
+     *
+     * @param imageId The image ID.
+     * @param roiId   The ROI ID.
+     *
+     * @return See above.
+     *
+     * @throws ServiceException Cannot connect to OMERO.
+     * @throws OMEROServerError Server error.
+     */
+    private ROIWrapper getROI(long imageId, long roiId) throws ServiceException, OMEROServerError {
+        List<ROIWrapper> rois = loadROIs(imageId, Collections.singletonList(roiId));
+        if (rois.isEmpty()) {
+            throw new NoSuchElementException("ROI " + roiId + " not found on image " + imageId);
+        }
+        return rois.get(0);
+    }
+
+
+    /**
+     * Opens a pixel reader for an image, using the local pixel cache if it is enabled.
+     *
+     * @param id The image ID.
+     *
+     * @return See above.
+     *
+     * @throws ServiceException Cannot connect to OMERO.
+     * @throws OMEROServerError Server error.
+     */
+    private PixelReader openReader(long id) throws ServiceException, OMEROServerError {
+        PixelReader reader = new PixelReader(client, id);
+        reader.setCache(pixelCache);
+        return reader;
     }
 
 
     /**
-     * Unlinks two objects.
+     * Reads a region of an image, only retrieving the selected planes, at the resolution level specified in the
+     * bounds (if any).
      *
-     * @param type1 The first object type.
-     * @param id1   The first object ID.
-     * @param type2 The second object type.
-     * @param id2   The second object ID.
+     * @param id     The image ID.
+     * @param bounds The bounds string, with XY in the coordinates of the resolution level.
+     *
+     * @return The region, as an {@link ImagePlus}.
+     *
+     * @throws ServiceException        Cannot connect to OMERO.
+     * @throws OMEROServerError        Server error.
+     * @throws DSOutOfServiceException Cannot connect to OMERO.
+     * @throws InterruptedException    The thread was interrupted.
      */
-    public void unlink(String type1, long id1, String type2, long id2) {
-        String t1 = singularType(type1);
-        String t2 = singularType(type2);
+    private ImagePlus readRegion(long id, String bounds)
+    throws ServiceException, OMEROServerError, DSOutOfServiceException, InterruptedException {
+        Bounds      b     = extractBounds(bounds);
+        Coordinates start = b.getStart();
+        Coordinates end   = b.getEnd();
+        int         level = extractLevel(bounds);
+        try (PixelReader reader = openReader(id)) {
+            if (level > 0) {
+                reader.setLevel(level);
+            }
+            int[] x = range(start.getX(), end.getX(), reader.getSizeX());
+            int[] y = range(start.getY(), end.getY(), reader.getSizeY());
+            return reader.read(reader.getName(), x[0], y[0], x.length, y.length,
+                               extractIndices(bounds, "z", reader.getSizeZ()),
+                               extractIndices(bounds, "c", reader.getSizeC()),
+                               extractIndices(bounds, "t", reader.getSizeT()),
+                               readThreads);
+        }
+    }
 
-        Map<String, Long> map = new HashMap<>(2);
-        map.put(t1, id1);
-        map.put(t2, id2);
 
-        Map<String, Long> objMap = new HashMap<>(2);
-        objMap.computeIfAbsent(PROJECT, map::get);
-        objMap.computeIfAbsent(DATASET, map::get);
-        objMap.computeIfAbsent(IMAGE, map::get);
-        objMap.computeIfAbsent(WELL, map::get);
-        objMap.computeIfAbsent(PLATE, map::get);
-        objMap.computeIfAbsent(SCREEN, map::get);
+    /**
+     * Opens an image as a virtual stack, reading planes from OMERO on demand.
+     *
+     * @param id The image ID.
+     *
+     * @return The image, as an {@link ImagePlus}.
+     *
+     * @throws ServiceException Cannot connect to OMERO.
+     * @throws OMEROServerError Server error.
+     */
+    private ImagePlus openVirtual(long id) throws ServiceException, OMEROServerError {
+        PlaneStack stack = new PlaneStack(openReader(id), planeCacheBytes);
+        ImagePlus  imp   = stack.toImagePlus();
+        if (!listening) {
+            ImagePlus.addImageListener(virtualStackCloser);
+            listening = true;
+        }
+        planeStacks.put(imp, stack);
+        return imp;
+    }
 
-        Map<String, Long> annMap = new HashMap<>(1);
-        annMap.computeIfAbsent(TAG, map::get);
-        annMap.computeIfAbsent(MAP, map::get);
 
+    /**
+     * Starts reading an image tile by tile, through a single pixel session. Tiles are read row by row with
+     * {@link #nextTile()}, the following tile being read in the background.
+     *
+     * @param id      The image ID.
+     * @param width   The tile width (if 0 or less, the tile width of the pixel store).
+     * @param height  The tile height (if 0 or less, the tile height of the pixel store).
+     * @param overlap The number of pixels shared by neighbouring tiles.
+     * @param level   The resolution level (0 is the full resolution).
+     *
+     * @return The number of tiles.
+     */
+    public int openTiles(long id, int width, int height, int overlap, int level) {
+        closeTiles();
+        PixelReader reader = null;
+        int         count  = 0;
         try {
-            if (isInvalidLink(objMap, annMap)) {
-                IJ.error(String.format("Cannot unlink %s and %s", type1, type2));
-            } else if (annMap.size() == 1) { // Unlink annotation from repository object
-                String ann = annMap.keySet().iterator().next();
-                String obj = ann.equals(t1) ? t2 : t1;
+            reader = openReader(id);
+            if (level != 0) {
+                reader.setLevel(level);
+            }
+            int[] tileSize = reader.getTileSize();
+            tiles = new TileIterator(reader,
+                                     width > 0 ? width : tileSize[0],
+                                     height > 0 ? height : tileSize[1],
+                                     Math.max(0, overlap));
+            count = tiles.size();
+        } catch (ServiceException | OMEROServerError | DSOutOfServiceException | NoSuchElementException |
+                 IllegalArgumentException e) {
+            if (reader != null) {
+                reader.close();
+            }
+            IJ.error("Could not open tiles: " + e.getMessage());
+        }
+        return count;
+    }
 
-                GenericRepositoryObjectWrapper<?> object = getRepositoryObject(obj, map.get(obj));
-                if (object != null) {
-                    object.unlink(client, getAnnotation(ann, annMap.get(ann)));
-                }
-            } else { // Or unlink dataset from image or project
-                Long projectId = map.get(PROJECT);
-                Long datasetId = map.get(DATASET);
-                Long imageId   = map.get(IMAGE);
 
-                DatasetWrapper dataset = client.getDataset(datasetId);
-                if (projectId != null) {
-                    client.getProject(projectId).removeDataset(client, dataset);
-                } else {
-                    dataset.removeImage(client, client.getImage(imageId));
-                }
+    /**
+     * Returns the next tile of the image opened with {@link #openTiles}. The tile position is stored in the
+     * IMAGE_POS_X and IMAGE_POS_Y properties.
+     *
+     * @return The tile, or null if all tiles were read.
+     */
+    public ImagePlus nextTile() {
+        ImagePlus imp = null;
+        if (tiles != null && tiles.hasNext()) {
+            try {
+                imp = tiles.next();
+            } catch (OMEROServerError e) {
+                IJ.error("Could not read tile: " + e.getMessage());
+            } catch (InterruptedException e) {
+                IJ.error("Could not read tile: " + e.getMessage());
+                Thread.currentThread().interrupt();
+            }
+            if (!tiles.hasNext()) {
+                closeTiles();
             }
-        } catch (ServiceException | AccessException | ExecutionException | OMEROServerError e) {
-            IJ.error(String.format("Cannot unlink %s and %s: %s", type1, type2, e.getMessage()));
-        } catch (InterruptedException e) {
-            IJ.error(String.format("Cannot unlink %s and %s: %s", type1, type2, e.getMessage()));
-            Thread.currentThread().interrupt();
         }
+        return imp;
     }
 
 
     /**
-     * Retrieves the name of an object.
-     *
-     * @param type The object type.
-     * @param id   The object ID.
+     * Stops reading tiles and closes the pixel store.
+     */
+    private void closeTiles() {
+        if (tiles != null) {
+            tiles.close();
+            tiles = null;
+        }
+    }
+
+
+    /**
+     * Sets the number of planes read concurrently when opening images, each through its own pixel session.
      *
-     * @return The object name.
+     * @param threads The number of threads (1 to read planes one after the other).
      */
-    public String getName(String type, long id) {
-        String name = "";
+    public void setReadThreads(int threads) {
+        readThreads = Math.max(1, threads);
+    }
 
-        GenericObjectWrapper<?> object = getObject(type, id);
-        if (object != null) {
-            if (object instanceof GenericRepositoryObjectWrapper<?>) {
-                name = ((GenericRepositoryObjectWrapper<?>) object).getName();
-            } else if (object instanceof TagAnnotationWrapper) {
-                name = ((TagAnnotationWrapper) object).getName();
-            } else if (object instanceof MapAnnotationWrapper) {
-                MapAnnotationWrapper map = (MapAnnotationWrapper) object;
-                name = map.getContentAsEntryList()
-                          .stream()
-                          .map(e -> e.getKey() + "\t" + e.getValue())
-                          .collect(Collectors.joining(String.format("%n")));
-            }
+
+    /**
+     * Enables a local cache storing the planes read from OMERO on disk, so that images opened again are read from
+     * the disk. Cached planes are discarded when the image is modified on OMERO, and the least recently used files
+     * are deleted when the cache exceeds its maximum size.
+     *
+     * @param path The cache directory (if null or empty, the cache is disabled).
+     * @param size The maximum cache size, in MB (if null, 1024).
+     */
+    public void setPixelCache(String path, Long size) {
+        if (path == null || path.trim().isEmpty()) {
+            pixelCache = null;
+        } else {
+            long maxSize = size == null ? 1024L : Math.max(0L, size);
+            pixelCache = new PixelCache(path.trim(), maxSize * 1024 * 1024);
         }
-        return name;
     }
 
 
     /**
-     * Opens an image with optional bounds. The bounds are in the form "x:min:max" with max included. Each of XYCZT is
-     * optional, min and max are also optional: "x:0:100 y::200 z:5: t::"
+     * Sets the maximum memory used to cache the planes of each virtual stack opened afterwards.
      *
-     * @param id  The image ID.
-     * @param roi The ROI ID or XYCZT bounds
+     * @param size The cache size, in MB.
+     */
+    public void setPlaneCacheSize(long size) {
+        planeCacheBytes = Math.max(0L, size) * 1024 * 1024;
+    }
+
+
+    /**
+     * Starts loading images in the background, in the order they will be requested with {@link #getImage}.
      *
-     * @return The image, as an {@link ImagePlus}.
+     * @param ids    The image IDs, separated by commas.
+     * @param depth  The maximum number of images loaded ahead.
+     * @param budget The maximum memory used by prefetched images, in MB (if null, a quarter of the maximum memory).
      */
-    public ImagePlus getImage(long id, String roi) {
-        ImagePlus imp = null;
-        try {
-            ImageWrapper image = client.getImage(id);
-            if (roi == null) {
-                imp = image.toImagePlus(client);
-            } else {
-                final Long roiId = safeParseLong(roi);
-                if (roiId != null) {
-                    ROIWrapper oRoi = image.getROIs(client)
-                                           .stream()
-                                           .filter(r -> r.getId() == roiId)
-                                           .findFirst()
-                                           .orElseThrow(() -> new NoSuchElementException("ROI not found: " + roi));
-                    imp = image.toImagePlus(client, oRoi);
-                } else {
-                    Bounds b = extractBounds(roi);
-                    imp = image.toImagePlus(client, b);
-                }
-            }
-        } catch (ServiceException | AccessException | ExecutionException | NoSuchElementException e) {
-            IJ.error("Could not retrieve image: " + e.getMessage());
-        }
-        return imp;
+    public void prefetch(String ids, int depth, Long budget) {
+        long bytes = budget == null ? IJ.maxMemory() / 4 : budget * 1024 * 1024;
+        prefetcher.prefetch(client, this::loadImage, parseIDs(ids), depth, bytes);
     }
 
 
@@ -1491,19 +2837,16 @@ public class OMEROMacroExtension implements PlugIn, MacroExtension {
 
 
     /**
-     * Retrieves a concatenated string of all key-value pairs (keys should be unique).
+     * Retrieves the list of all key-value pairs attached to an object.
      *
-     * @param type      The object type.
-     * @param id        The object ID.
-     * @param separator The character(s) used to separate the items in the string (TAB by default).
+     * @param type The object type.
+     * @param id   The object ID.
      *
-     * @return The concatenated string of all key-value pairs for the specified repository object.
+     * @return The list of key-value pairs for the specified repository object.
      */
-    public String getKeyValuePairs(String type, long id, String separator) {
+    public List<Map.Entry<String, String>> getKeyValuePairsList(String type, long id) {
         List<Map.Entry<String, String>> keyValuePairs = new ArrayList<>(0);
 
-        String sep = separator == null ? "\t" : separator;
-
         GenericRepositoryObjectWrapper<?> object = getRepositoryObject(type, id);
         try {
             if (object != null) {
@@ -1512,6 +2855,23 @@ public class OMEROMacroExtension implements PlugIn, MacroExtension {
         } catch (ServiceException | AccessException | ExecutionException e) {
             IJ.error("Could not retrieve object: " + e.getMessage());
         }
+        return keyValuePairs;
+    }
+
+
+    /**
+     * Retrieves a concatenated string of all key-value pairs (keys should be unique).
+     *
+     * @param type      The object type.
+     * @param id        The object ID.
+     * @param separator The character(s) used to separate the items in the string (TAB by default).
+     *
+     * @return The concatenated string of all key-value pairs for the specified repository object.
+     */
+    public String getKeyValuePairs(String type, long id, String separator) {
+        List<Map.Entry<String, String>> keyValuePairs = getKeyValuePairsList(type, id);
+
+        String sep = separator == null ? "\t" : separator;
 
         int size = 10 * keyValuePairs.size();
 
@@ -1585,6 +2945,16 @@ public class OMEROMacroExtension implements PlugIn, MacroExtension {
     }
 
 
+    /**
+     * Retrieves the object cache statistics.
+     *
+     * @return The number of cache hits and misses, separated by a comma.
+     */
+    public String getCacheStatistics() {
+        return cache.getHits() + "," + cache.getMisses();
+    }
+
+
     /**
      * Disconnects from OMERO.
      */
@@ -1592,6 +2962,18 @@ public class OMEROMacroExtension implements PlugIn, MacroExtension {
         if (switched != null) {
             endSudo();
         }
+        awaitImports();
+        cache.clear();
+        prefetcher.clear();
+        cursors.clear();
+        deletions.clear();
+        ImagePlus.removeImageListener(virtualStackCloser);
+        listening = false;
+        synchronized (planeStacks) {
+            planeStacks.values().forEach(PlaneStack::close);
+            planeStacks.clear();
+        }
+        closeTiles();
         client.disconnect();
     }
 
@@ -1652,6 +3034,10 @@ public class OMEROMacroExtension implements PlugIn, MacroExtension {
 
             case "switchGroup":
                 long groupId = ((Double) args[0]).longValue();
+                // Queued imports use the current group
+                awaitImports();
+                cache.clear();
+                prefetcher.clear();
                 client.switchGroup(groupId);
                 results = String.valueOf(client.getCurrentGroupId());
                 break;
@@ -1663,7 +3049,46 @@ public class OMEROMacroExtension implements PlugIn, MacroExtension {
             case "importImage":
                 long datasetId = ((Double) args[0]).longValue();
                 path = ((String) args[1]);
-                results = importImage(datasetId, path);
+                Double skipArg = (Double) args[2];
+                results = importImage(datasetId, path, skipArg != null && skipArg != 0);
+                break;
+
+            case "importImageAsync":
+                datasetId = ((Double) args[0]).longValue();
+                path = ((String) args[1]);
+                results = String.valueOf(importImageAsync(datasetId, path));
+                break;
+
+            case "uploadImage":
+                datasetId = ((Double) args[0]).longValue();
+                results = String.valueOf(uploadImage(IJ.getImage(), datasetId));
+                break;
+
+            case "importImages":
+                datasetId = ((Double) args[0]).longValue();
+                String importTitle = args[2] == null || ((String) args[2]).isEmpty() ?
+                                     "Imported images" : (String) args[2];
+                ResultsTable importTable = new ResultsTable();
+                List<Long> importedIds = new ArrayList<>(0);
+                skipArg = (Double) args[3];
+                Map<String, List<Long>> imported = importImages(datasetId, (String) args[1],
+                                                                skipArg != null && skipArg != 0);
+                for (Map.Entry<String, List<Long>> entry : imported.entrySet()) {
+                    importTable.incrementCounter();
+                    importTable.addValue("File", entry.getKey());
+                    importTable.addValue("Image IDs", joinIDs(entry.getValue()));
+                    importedIds.addAll(entry.getValue());
+                }
+                importTable.show(importTitle);
+                results = joinIDs(importedIds);
+                break;
+
+            case "awaitImports":
+                results = joinIDs(awaitImports());
+                break;
+
+            case "setImportWorkers":
+                setImportWorkers(((Double) args[0]).intValue());
                 break;
 
             case "downloadImage":
@@ -1672,6 +3097,34 @@ public class OMEROMacroExtension implements PlugIn, MacroExtension {
                 results = downloadImage(id, path);
                 break;
 
+            case "downloadImageToArray":
+                id = ((Double) args[0]).longValue();
+                path = ((String) args[1]);
+                List<File> files = downloadImageFiles(id, path);
+                setOutputArray(args[2], files);
+                results = String.valueOf(files.size());
+                break;
+
+            case "downloadImages":
+                path = ((String) args[1]);
+                int threads = ((Double) args[2]).intValue();
+                String downloadTitle = args[3] == null || ((String) args[3]).isEmpty() ?
+                                       "Downloaded images" : (String) args[3];
+                ResultsTable downloadTable = new ResultsTable();
+                List<File> downloaded = new ArrayList<>(0);
+                for (Map.Entry<Long, List<File>> entry : downloadImages((String) args[0], path, threads).entrySet()) {
+                    downloadTable.incrementCounter();
+                    downloadTable.addValue("Image ID", entry.getKey().doubleValue());
+                    downloadTable.addValue("Files", entry.getValue()
+                                                         .stream()
+                                                         .map(File::toString)
+                                                         .collect(Collectors.joining(",")));
+                    entry.getValue().stream().filter(f -> !downloaded.contains(f)).forEach(downloaded::add);
+                }
+                downloadTable.show(downloadTitle);
+                results = downloaded.stream().map(File::toString).collect(Collectors.joining(","));
+                break;
+
             case "addFile":
                 type = (String) args[0];
                 id = ((Double) args[1]).longValue();
@@ -1743,6 +3196,21 @@ public class OMEROMacroExtension implements PlugIn, MacroExtension {
                 delete(type, id);
                 break;
 
+            case "deleteMany":
+                type = (String) args[0];
+                Double asyncArg = (Double) args[2];
+                boolean async = asyncArg != null && asyncArg != 0;
+                results = String.valueOf(deleteMany(type, (String) args[1], async));
+                break;
+
+            case "deleteStatus":
+                results = deleteStatus(((Double) args[0]).intValue());
+                break;
+
+            case "awaitDelete":
+                results = String.valueOf(awaitDelete(((Double) args[0]).intValue()));
+                break;
+
             case "list":
                 type = (String) args[0];
                 if (args[1] == null && args[2] == null) {
@@ -1758,6 +3226,52 @@ public class OMEROMacroExtension implements PlugIn, MacroExtension {
                 }
                 break;
 
+            case "listToArray":
+                type = (String) args[0];
+                List<Long> ids = new ArrayList<>(0);
+                if (args[2] == null && args[3] == null) {
+                    ids = listIDs(type);
+                } else if (args[2] != null && args[3] == null) {
+                    ids = listIDs(type, (String) args[2]);
+                } else if (args[2] != null) {
+                    ids = listIDs(type, (String) args[2], ((Double) args[3]).longValue());
+                } else {
+                    IJ.error("Third argument should not be null.");
+                }
+                setOutputArray(args[1], ids);
+                results = String.valueOf(ids.size());
+                break;
+
+            case "listToResults":
+                type = (String) args[0];
+                String columns = (String) args[1];
+                String resultsTitle = args[2] == null || ((String) args[2]).isEmpty() ? "Results" : (String) args[2];
+                ResultsTable listing = listWithColumns(type, columns, (String) args[3], doubleToLong((Double) args[4]));
+                listing.show(resultsTitle);
+                results = String.valueOf(listing.size());
+                break;
+
+            case "count":
+                type = (String) args[0];
+                Long containerId = doubleToLong((Double) args[2]);
+                results = String.valueOf(count(type, (String) args[1], containerId));
+                break;
+
+            case "openCursor":
+                type = (String) args[0];
+                int pageSize = ((Double) args[1]).intValue();
+                Long parentId = doubleToLong((Double) args[3]);
+                results = String.valueOf(openCursor(type, pageSize, (String) args[2], parentId));
+                break;
+
+            case "listNext":
+                results = listNext(((Double) args[0]).intValue());
+                break;
+
+            case "closeCursor":
+                closeCursor(((Double) args[0]).intValue());
+                break;
+
             case "link":
                 type1 = (String) args[0];
                 id1 = ((Double) args[1]).longValue();
@@ -1774,6 +3288,20 @@ public class OMEROMacroExtension implements PlugIn, MacroExtension {
                 unlink(type1, id1, type2, id2);
                 break;
 
+            case "linkMany":
+                type1 = (String) args[0];
+                type2 = (String) args[2];
+                id2 = ((Double) args[3]).longValue();
+                results = String.valueOf(linkMany(type1, (String) args[1], type2, id2));
+                break;
+
+            case "unlinkMany":
+                type1 = (String) args[0];
+                type2 = (String) args[2];
+                id2 = ((Double) args[3]).longValue();
+                results = String.valueOf(unlinkMany(type1, (String) args[1], type2, id2));
+                break;
+
             case "getName":
                 type = (String) args[0];
                 id = ((Double) args[1]).longValue();
@@ -1789,6 +3317,79 @@ public class OMEROMacroExtension implements PlugIn, MacroExtension {
                 }
                 break;
 
+            case "getProjection":
+                id = ((Double) args[0]).longValue();
+                Integer projC = args[4] == null ? null : ((Double) args[4]).intValue();
+                Integer projT = args[5] == null ? null : ((Double) args[5]).intValue();
+                ImagePlus projection = getProjection(id, (String) args[1],
+                                                     ((Double) args[2]).intValue(), ((Double) args[3]).intValue(),
+                                                     projC, projT);
+                if (projection != null) {
+                    projection.show();
+                    results = String.valueOf(projection.getID());
+                }
+                break;
+
+            case "prefetch":
+                int depth = ((Double) args[1]).intValue();
+                Long budget = doubleToLong((Double) args[2]);
+                prefetch((String) args[0], depth, budget);
+                break;
+
+            case "setReadThreads":
+                setReadThreads(((Double) args[0]).intValue());
+                break;
+
+            case "setPixelCache":
+                setPixelCache((String) args[0], doubleToLong((Double) args[1]));
+                break;
+
+            case "setPlaneCacheSize":
+                setPlaneCacheSize(((Double) args[0]).longValue());
+                break;
+
+            case "openTiles":
+                id = ((Double) args[0]).longValue();
+                int tileWidth = ((Double) args[1]).intValue();
+                int tileHeight = ((Double) args[2]).intValue();
+                int overlap = args[3] == null ? 0 : ((Double) args[3]).intValue();
+                int level = args[4] == null ? 0 : ((Double) args[4]).intValue();
+                results = String.valueOf(openTiles(id, tileWidth, tileHeight, overlap, level));
+                break;
+
+            case "nextTile":
+                ImagePlus tile = nextTile();
+                if (tile != null) {
+                    tile.show();
+                    results = String.valueOf(tile.getID());
+                } else {
+                    results = "";
+                }
+                break;
+
+            case "getImageFromROI":
+                id = ((Double) args[0]).longValue();
+                ImagePlus roiImp = getImageFromROI(id, ((Double) args[1]).longValue());
+                if (roiImp != null) {
+                    roiImp.show();
+                    results = String.valueOf(roiImp.getID());
+                }
+                break;
+
+            case "getImagesFromROIs":
+                id = ((Double) args[0]).longValue();
+                List<String> cropIds = new ArrayList<>(0);
+                for (ImagePlus crop : getImagesFromROIs(id, (String) args[1])) {
+                    if (crop == null) {
+                        cropIds.add("-1");
+                    } else {
+                        crop.show();
+                        cropIds.add(String.valueOf(crop.getID()));
+                    }
+                }
+                results = String.join(",", cropIds);
+                break;
+
             case "getROIs":
                 id = ((Double) args[0]).longValue();
                 Double ov = (Double) args[1];
@@ -1818,6 +3419,15 @@ public class OMEROMacroExtension implements PlugIn, MacroExtension {
                 results = getKeyValuePairs(type, id, separator);
                 break;
 
+            case "getKeyValuePairsToArrays":
+                type = (String) args[0];
+                id = ((Double) args[1]).longValue();
+                List<Map.Entry<String, String>> pairs = getKeyValuePairsList(type, id);
+                setOutputArray(args[2], pairs.stream().map(Map.Entry::getKey).collect(Collectors.toList()));
+                setOutputArray(args[3], pairs.stream().map(Map.Entry::getValue).collect(Collectors.toList()));
+                results = String.valueOf(pairs.size());
+                break;
+
             case "getValue":
                 type = (String) args[0];
                 id = ((Double) args[1]).longValue();
@@ -1834,6 +3444,14 @@ public class OMEROMacroExtension implements PlugIn, MacroExtension {
                 endSudo();
                 break;
 
+            case "getCacheStatistics":
+                results = getCacheStatistics();
+                break;
+
+            case "clearCache":
+                cache.clear();
+                break;
+
             case "disconnect":
                 disconnect();
                 break;
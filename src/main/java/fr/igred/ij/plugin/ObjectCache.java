@@ -0,0 +1,221 @@
+/*
+ *  Copyright (C) 2021-2023 GReD
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package fr.igred.ij.plugin;
+
+
+import fr.igred.omero.GenericObjectWrapper;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Bounded LRU cache for objects retrieved from OMERO, with a time-to-live on each entry.
+ * <p>Entries are keyed by group, type and ID, so that switching group never returns objects from another context.
+ */
+class ObjectCache {
+
+    /** The default maximum number of cached objects. */
+    static final int DEFAULT_CAPACITY = 256;
+
+    /** The default time-to-live of cached objects, in seconds. */
+    static final long DEFAULT_TTL = 60L;
+
+    /** The cached entries, in access order. */
+    private final LinkedHashMap<Key, Entry> entries;
+
+    /** The maximum number of cached objects. */
+    private final int capacity;
+
+    /** The time-to-live of cached objects, in nanoseconds. */
+    private final long ttl;
+
+    /** The number of cache hits. */
+    private long hits = 0L;
+
+    /** The number of cache misses. */
+    private long misses = 0L;
+
+
+    /**
+     * Creates a new cache with default capacity and time-to-live.
+     */
+    ObjectCache() {
+        this(DEFAULT_CAPACITY, DEFAULT_TTL);
+    }
+
+
+    /**
+     * Creates a new cache.
+     *
+     * @param capacity The maximum number of cached objects.
+     * @param ttl      The time-to-live of cached objects, in seconds.
+     */
+    ObjectCache(int capacity, long ttl) {
+        this.capacity = capacity;
+        this.ttl = TimeUnit.SECONDS.toNanos(ttl);
+        this.entries = new LinkedHashMap<>(capacity, 0.75f, true);
+    }
+
+
+    /**
+     * Retrieves an object from the cache.
+     *
+     * @param groupId The group ID.
+     * @param type    The object type (singular).
+     * @param id      The object ID.
+     *
+     * @return The cached object, or null if it is absent or expired.
+     */
+    synchronized GenericObjectWrapper<?> get(long groupId, String type, long id) {
+        Key   key   = new Key(groupId, type, id);
+        Entry entry = entries.get(key);
+        if (entry != null && System.nanoTime() - entry.time > ttl) {
+            entries.remove(key);
+            entry = null;
+        }
+        if (entry == null) {
+            misses++;
+            return null;
+        } else {
+            hits++;
+            return entry.object;
+        }
+    }
+
+
+    /**
+     * Adds an object to the cache, evicting the least recently used object if the cache is full.
+     *
+     * @param groupId The group ID.
+     * @param type    The object type (singular).
+     * @param id      The object ID.
+     * @param object  The object.
+     */
+    synchronized void put(long groupId, String type, long id, GenericObjectWrapper<?> object) {
+        if (object != null && capacity > 0) {
+            entries.put(new Key(groupId, type, id), new Entry(object));
+            Iterator<Key> it = entries.keySet().iterator();
+            while (entries.size() > capacity && it.hasNext()) {
+                it.next();
+                it.remove();
+            }
+        }
+    }
+
+
+    /**
+     * Removes an object from the cache, in every group.
+     *
+     * @param type The object type (singular).
+     * @param id   The object ID.
+     */
+    synchronized void invalidate(String type, long id) {
+        entries.keySet().removeIf(k -> k.id == id && k.type.equals(type));
+    }
+
+
+    /**
+     * Removes every object from the cache.
+     */
+    synchronized void clear() {
+        entries.clear();
+    }
+
+
+    /**
+     * Returns the number of cache hits.
+     *
+     * @return See above.
+     */
+    synchronized long getHits() {
+        return hits;
+    }
+
+
+    /**
+     * Returns the number of cache misses.
+     *
+     * @return See above.
+     */
+    synchronized long getMisses() {
+        return misses;
+    }
+
+
+    /**
+     * Returns the number of cached objects.
+     *
+     * @return See above.
+     */
+    synchronized int size() {
+        return entries.size();
+    }
+
+
+    /** Cache key: (group, type, id). */
+    private static final class Key {
+
+        private final long   groupId;
+        private final String type;
+        private final long   id;
+
+
+        private Key(long groupId, String type, long id) {
+            this.groupId = groupId;
+            this.type = type;
+            this.id = id;
+        }
+
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return groupId == key.groupId && id == key.id && type.equals(key.type);
+        }
+
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(groupId, type, id);
+        }
+
+    }
+
+
+    /** Cache entry: object and insertion time. */
+    private static final class Entry {
+
+        private final GenericObjectWrapper<?> object;
+        private final long                    time;
+
+
+        private Entry(GenericObjectWrapper<?> object) {
+            this.object = object;
+            this.time = System.nanoTime();
+        }
+
+    }
+
+}
@@ -0,0 +1,375 @@
+/*
+ *  Copyright (C) 2021-2023 GReD
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package fr.igred.ij.plugin;
+
+
+import fr.igred.omero.Client;
+import fr.igred.omero.exception.AccessException;
+import fr.igred.omero.exception.OMEROServerError;
+import fr.igred.omero.exception.ServiceException;
+import ij.IJ;
+import omero.RLong;
+import omero.RString;
+import omero.RType;
+import omero.ServerError;
+import omero.api.RawFileStorePrx;
+import omero.gateway.exception.DSOutOfServiceException;
+import omero.sys.ParametersI;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+
+/**
+ * Downloads the original files of an image in chunks, so that interrupted downloads can be resumed.
+ * <p>Each file is first written to a {@code .part} file. A sidecar {@code .progress} file records which original
+ * file is being downloaded and how many bytes were safely written, so that the next attempt starts from there.
+ * Once complete, the file is checked against the checksum stored on the server before being renamed.
+ */
+final class OriginalFileDownload {
+
+    /** The size of the chunks read from the server. */
+    private static final int CHUNK_BYTES = 8 * 1024 * 1024;
+
+    /** The size of the buffer used to compute checksums. */
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    /** The suffix of partially downloaded files. */
+    private static final String PART = ".part";
+
+    /** The suffix of progress files. */
+    private static final String PROGRESS = ".progress";
+
+    /** The query retrieving the original files of an image. */
+    private static final String QUERY = "select f.id, f.name, f.size, f.hash, h.value" +
+                                        " from Image as i join i.fileset as fs" +
+                                        " join fs.usedFiles as fe join fe.originalFile as f" +
+                                        " left outer join f.hasher as h where i.id = :id";
+
+
+    /** Prevent instantiation of utility class. */
+    private OriginalFileDownload() {
+    }
+
+
+    /**
+     * Returns the string value of a projection cell, or null.
+     *
+     * @param value The projection cell.
+     *
+     * @return See above.
+     */
+    private static String string(RType value) {
+        return value == null ? null : ((RString) value).getValue();
+    }
+
+
+    /**
+     * Computes the checksum of a file with the specified OMERO hasher.
+     *
+     * @param file   The file.
+     * @param hasher The hasher value, e.g. "SHA1-160".
+     *
+     * @return The checksum, as a lower case hexadecimal string, or null if the hasher is not supported.
+     *
+     * @throws IOException If the file cannot be read.
+     */
+    private static String checksum(Path file, String hasher) throws IOException {
+        MessageDigest digest   = null;
+        Checksum      checksum = null;
+        try {
+            if ("SHA1-160".equals(hasher)) {
+                digest = MessageDigest.getInstance("SHA-1");
+            } else if ("MD5-128".equals(hasher)) {
+                digest = MessageDigest.getInstance("MD5");
+            } else if ("Adler-32".equals(hasher)) {
+                checksum = new Adler32();
+            } else if ("CRC-32".equals(hasher)) {
+                checksum = new CRC32();
+            } else {
+                // Unknown algorithm, or "File-Size-64" which is already checked
+                return null;
+            }
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(hasher + " is not available", e);
+        }
+
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream in = Files.newInputStream(file)) {
+            int read = in.read(buffer);
+            while (read >= 0) {
+                if (digest != null) {
+                    digest.update(buffer, 0, read);
+                } else {
+                    checksum.update(buffer, 0, read);
+                }
+                read = in.read(buffer);
+            }
+        }
+
+        if (digest == null) {
+            return String.format(Locale.ROOT, "%08x", checksum.getValue());
+        }
+        StringBuilder hex = new StringBuilder(2 * digest.getDigestLength());
+        for (byte b : digest.digest()) {
+            hex.append(String.format(Locale.ROOT, "%02x", b));
+        }
+        return hex.toString();
+    }
+
+
+    /**
+     * Checks a downloaded file against its size and checksum on the server.
+     *
+     * @param file   The downloaded file.
+     * @param size   The expected size (negative if unknown).
+     * @param hash   The expected checksum (can be null).
+     * @param hasher The algorithm used to compute the checksum (can be null).
+     *
+     * @return True if the file matches, false otherwise.
+     *
+     * @throws IOException If the file cannot be read.
+     */
+    private static boolean matches(Path file, long size, String hash, String hasher) throws IOException {
+        if (size >= 0 && Files.size(file) != size) {
+            return false;
+        }
+        if (hash == null || hasher == null) {
+            return true;
+        }
+        String local = checksum(file, hasher);
+        return local == null || local.equalsIgnoreCase(hash);
+    }
+
+
+    /**
+     * Reads the number of bytes already downloaded for an original file.
+     *
+     * @param progress The progress file.
+     * @param part     The partially downloaded file.
+     * @param fileId   The original file ID.
+     * @param hash     The original file checksum.
+     *
+     * @return The offset from which the download should resume.
+     *
+     * @throws IOException If the progress file cannot be read.
+     */
+    private static long readOffset(Path progress, Path part, long fileId, String hash) throws IOException {
+        if (!Files.exists(progress) || !Files.exists(part)) {
+            return 0L;
+        }
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(progress)) {
+            properties.load(in);
+        }
+        // The partial file belongs to another original file, or the original file was replaced
+        if (!String.valueOf(fileId).equals(properties.getProperty("fileId")) ||
+            !String.valueOf(hash).equals(properties.getProperty("hash"))) {
+            return 0L;
+        }
+        try {
+            long offset = Long.parseLong(properties.getProperty("offset", "0"));
+            return Math.max(0L, Math.min(offset, Files.size(part)));
+        } catch (NumberFormatException e) {
+            return 0L;
+        }
+    }
+
+
+    /**
+     * Records the number of bytes safely written for an original file.
+     *
+     * @param progress The progress file.
+     * @param fileId   The original file ID.
+     * @param hash     The original file checksum.
+     * @param offset   The number of bytes written.
+     *
+     * @throws IOException If the progress file cannot be written.
+     */
+    private static void writeOffset(Path progress, long fileId, String hash, long offset) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("fileId", String.valueOf(fileId));
+        properties.setProperty("hash", String.valueOf(hash));
+        properties.setProperty("offset", String.valueOf(offset));
+        try (OutputStream out = Files.newOutputStream(progress)) {
+            properties.store(out, null);
+        }
+    }
+
+
+    /**
+     * Downloads a single original file, resuming a previous attempt if possible.
+     *
+     * @param store  The raw file store.
+     * @param target The local file.
+     * @param fileId The original file ID.
+     * @param size   The original file size (negative if unknown).
+     * @param hash   The original file checksum (can be null).
+     * @param hasher The algorithm used to compute the checksum (can be null).
+     *
+     * @return The number of bytes actually transferred (0 if the local file was already complete).
+     *
+     * @throws ServerError Server error.
+     * @throws IOException If the file cannot be written, or does not match the checksum on the server.
+     */
+    private static long downloadFile(RawFileStorePrx store, Path target, long fileId, long size,
+                                     String hash, String hasher)
+    throws ServerError, IOException {
+        // Without size and checksum, neither partial nor existing files can be trusted
+        boolean verifiable = size >= 0 && hash != null;
+        if (!verifiable) {
+            IJ.log("No size or checksum on the server for " + target.getFileName() +
+                   ": downloading the whole file without verification");
+        } else if (Files.exists(target) && matches(target, size, hash, hasher)) {
+            return 0L;
+        }
+
+        Path part     = Paths.get(target + PART);
+        Path progress = Paths.get(target + PROGRESS);
+        long offset   = verifiable ? readOffset(progress, part, fileId, hash) : 0L;
+        long resumed  = offset;
+
+        store.setFileId(fileId);
+        long total = size >= 0 ? size : store.size();
+        try (FileChannel channel = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            channel.truncate(offset);
+            while (offset < total) {
+                int        length = (int) Math.min(CHUNK_BYTES, total - offset);
+                ByteBuffer buffer = ByteBuffer.wrap(store.read(offset, length));
+                while (buffer.hasRemaining()) {
+                    offset += channel.write(buffer, offset);
+                }
+                if (verifiable) {
+                    // Only record bytes which are on disk
+                    channel.force(false);
+                    writeOffset(progress, fileId, hash, offset);
+                }
+                IJ.showProgress((double) offset / total);
+            }
+        }
+
+        if (!matches(part, size, hash, hasher)) {
+            Files.deleteIfExists(part);
+            Files.deleteIfExists(progress);
+            throw new IOException("Checksum mismatch for downloaded file: " + target);
+        }
+        Files.move(part, target, StandardCopyOption.REPLACE_EXISTING);
+        Files.deleteIfExists(progress);
+        return offset - resumed;
+    }
+
+
+    /**
+     * Downloads the original files of an image.
+     *
+     * @param client  The client.
+     * @param imageId The image ID.
+     * @param path    The path where the files should be downloaded.
+     *
+     * @return The downloaded files.
+     *
+     * @throws ServiceException        Cannot connect to OMERO.
+     * @throws AccessException         Cannot access data.
+     * @throws OMEROServerError        Server error.
+     * @throws ExecutionException      A Facility can't be retrieved or instantiated.
+     * @throws DSOutOfServiceException Cannot connect to OMERO.
+     * @throws IOException             If a file cannot be written, or does not match the checksum on the server.
+     */
+    static List<File> download(Client client, long imageId, String path)
+    throws ServiceException, AccessException, OMEROServerError, ExecutionException, DSOutOfServiceException,
+           IOException {
+        return download(client, imageId, path, new LongAdder());
+    }
+
+
+    /**
+     * Downloads the original files of an image, counting the bytes actually transferred.
+     *
+     * @param client      The client.
+     * @param imageId     The image ID.
+     * @param path        The path where the files should be downloaded.
+     * @param transferred The counter to which the number of transferred bytes is added.
+     *
+     * @return The downloaded files.
+     *
+     * @throws ServiceException        Cannot connect to OMERO.
+     * @throws AccessException         Cannot access data.
+     * @throws OMEROServerError        Server error.
+     * @throws ExecutionException      A Facility can't be retrieved or instantiated.
+     * @throws DSOutOfServiceException Cannot connect to OMERO.
+     * @throws IOException             If a file cannot be written, or does not match the checksum on the server.
+     */
+    static List<File> download(Client client, long imageId, String path, LongAdder transferred)
+    throws ServiceException, AccessException, OMEROServerError, ExecutionException, DSOutOfServiceException,
+           IOException {
+        ParametersI params = new ParametersI();
+        params.addId(imageId);
+        List<List<RType>> rows = ListQuery.projection(client, QUERY, params);
+
+        Path dir = Paths.get(path);
+        Files.createDirectories(dir);
+        if (rows.isEmpty()) {
+            // Images imported before filesets existed have no original files to resume
+            List<File> files = client.getImage(imageId).download(client, path);
+            files.forEach(f -> transferred.add(f.length()));
+            return files;
+        }
+
+        List<File> files = new ArrayList<>(rows.size());
+        RawFileStorePrx store = client.getGateway().getRawFileService(client.getCtx());
+        try {
+            for (List<RType> row : rows) {
+                long   fileId = ((RLong) row.get(0)).getValue();
+                Path   target = dir.resolve(string(row.get(1)));
+                long   size   = row.get(2) == null ? -1L : ((RLong) row.get(2)).getValue();
+                String hash   = string(row.get(3));
+                String hasher = string(row.get(4));
+                transferred.add(downloadFile(store, target, fileId, size, hash, hasher));
+                files.add(target.toFile());
+            }
+        } catch (ServerError e) {
+            throw new OMEROServerError("Could not download file", e);
+        } finally {
+            try {
+                store.close();
+            } catch (ServerError e) {
+                IJ.log("Could not close file store: " + e.getMessage());
+            }
+        }
+        return files;
+    }
+
+}
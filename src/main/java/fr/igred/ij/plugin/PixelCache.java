@@ -0,0 +1,303 @@
+/*
+ *  Copyright (C) 2021-2023 GReD
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package fr.igred.ij.plugin;
+
+
+import ij.IJ;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+
+/**
+ * Keeps planes read from OMERO on the local disk, so that they are not downloaded again.
+ * <p>Each region of an image is stored in its own file, in a directory named after the image ID. The file name holds
+ * the version of the image (its last update event), the resolution level and the region bounds, so that files are
+ * never read for a modified image. A file starts with a header and a flag per plane, followed by the planes at fixed
+ * offsets. Planes are read back through memory-mapped buffers.
+ * <p>When the cache grows over its maximum size, the least recently used files are deleted.
+ */
+class PixelCache {
+
+    /** The suffix of cache files. */
+    private static final String SUFFIX = ".pix";
+
+    /** The magic number starting cache files. */
+    private static final int MAGIC = 0x4F504958;
+
+    /** The size of the header: magic number, number of planes and plane size. */
+    private static final int HEADER = 3 * Integer.BYTES;
+
+    /** The cache directory. */
+    private final Path dir;
+
+    /** The maximum number of bytes used by the cache. */
+    private final long maxBytes;
+
+    /** The number of bytes used by the cache (-1 until it is computed). */
+    private long size = -1L;
+
+
+    /**
+     * Creates a cache in the specified directory.
+     *
+     * @param path     The cache directory.
+     * @param maxBytes The maximum number of bytes used by the cache.
+     */
+    PixelCache(String path, long maxBytes) {
+        this.dir = Paths.get(path);
+        this.maxBytes = maxBytes;
+    }
+
+
+    /**
+     * Returns the file storing a region of an image.
+     *
+     * @param imageId The image ID.
+     * @param version The image version.
+     * @param region  The resolution level and region bounds, as {level, x, y, width, height}.
+     *
+     * @return See above.
+     */
+    private Path file(long imageId, long version, int[] region) {
+        String name = String.format(Locale.ROOT, "v%d_l%d_%d_%d_%dx%d%s", version,
+                                    region[0], region[1], region[2], region[3], region[4], SUFFIX);
+        return dir.resolve(String.valueOf(imageId)).resolve(name);
+    }
+
+
+    /**
+     * Returns the offset of a plane in a cache file.
+     *
+     * @param planes     The number of planes in the file.
+     * @param plane      The plane index.
+     * @param planeBytes The size of a plane, in bytes.
+     *
+     * @return See above.
+     */
+    private static long offset(int planes, int plane, int planeBytes) {
+        return HEADER + planes + (long) plane * planeBytes;
+    }
+
+
+    /**
+     * Lists the cache files.
+     *
+     * @return See above.
+     *
+     * @throws IOException If the cache directory cannot be read.
+     */
+    private List<Path> files() throws IOException {
+        if (!Files.isDirectory(dir)) {
+            return new ArrayList<>(0);
+        }
+        try (Stream<Path> paths = Files.walk(dir, 2)) {
+            return paths.filter(p -> p.getFileName().toString().endsWith(SUFFIX)).collect(Collectors.toList());
+        }
+    }
+
+
+    /**
+     * Reads a plane from the cache.
+     *
+     * @param imageId    The image ID.
+     * @param version    The image version.
+     * @param region     The resolution level and region bounds, as {level, x, y, width, height}.
+     * @param planes     The number of planes in the image.
+     * @param plane      The plane index.
+     * @param planeBytes The size of a plane, in bytes.
+     *
+     * @return The raw pixel data, or null if the plane is not in the cache.
+     *
+     * @throws IOException If the cache file cannot be read.
+     */
+    ByteBuffer get(long imageId, long version, int[] region, int planes, int plane, int planeBytes)
+    throws IOException {
+        Path file = file(imageId, version, region);
+        if (!Files.exists(file)) {
+            return null;
+        }
+        ByteBuffer data;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long offset = offset(planes, plane, planeBytes);
+            if (channel.size() < offset + planeBytes) {
+                return null;
+            }
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER + planes);
+            header.order(ByteOrder.BIG_ENDIAN);
+            if (header.getInt(0) != MAGIC || header.getInt(Integer.BYTES) != planes ||
+                header.getInt(2 * Integer.BYTES) != planeBytes || header.get(HEADER + plane) == 0) {
+                return null;
+            }
+            // The mapping stays valid once the channel is closed
+            data = channel.map(FileChannel.MapMode.READ_ONLY, offset, planeBytes);
+        }
+        Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+        return data;
+    }
+
+
+    /**
+     * Writes a plane to the cache, then deletes the least recently used files if the cache is too large.
+     *
+     * @param imageId The image ID.
+     * @param version The image version.
+     * @param region  The resolution level and region bounds, as {level, x, y, width, height}.
+     * @param planes  The number of planes in the image.
+     * @param plane   The plane index.
+     * @param bytes   The raw pixel data.
+     *
+     * @throws IOException If the cache file cannot be written.
+     */
+    synchronized void put(long imageId, long version, int[] region, int planes, int plane, byte[] bytes)
+    throws IOException {
+        if (size < 0) {
+            size = 0L;
+            for (Path cached : files()) {
+                size += Files.size(cached);
+            }
+        }
+
+        Path    file    = file(imageId, version, region);
+        boolean created = !Files.exists(file);
+        if (created) {
+            removeStale(file.getParent(), version);
+            Files.createDirectories(file.getParent());
+        }
+
+        long before;
+        long after;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                                                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            before = channel.size();
+            if (before < HEADER) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER).order(ByteOrder.BIG_ENDIAN);
+                header.putInt(MAGIC).putInt(planes).putInt(bytes.length).flip();
+                write(channel, header, 0);
+            }
+            write(channel, ByteBuffer.wrap(bytes), offset(planes, plane, bytes.length));
+            // The plane is flagged once its data is written, so that interrupted writes are not read back
+            write(channel, ByteBuffer.wrap(new byte[]{1}), HEADER + (long) plane);
+            after = channel.size();
+        }
+        size += after - before;
+        if (size > maxBytes) {
+            evict(file);
+        }
+    }
+
+
+    /**
+     * Writes a buffer at the specified position.
+     *
+     * @param channel  The file channel.
+     * @param buffer   The data.
+     * @param position The position in the file.
+     *
+     * @throws IOException If the file cannot be written.
+     */
+    private static void write(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        long offset = position;
+        while (buffer.hasRemaining()) {
+            offset += channel.write(buffer, offset);
+        }
+    }
+
+
+    /**
+     * Deletes the files of older versions of an image.
+     *
+     * @param imageDir The image directory.
+     * @param version  The current version of the image.
+     *
+     * @throws IOException If the directory cannot be read.
+     */
+    private void removeStale(Path imageDir, long version) throws IOException {
+        if (!Files.isDirectory(imageDir)) {
+            return;
+        }
+        String prefix = "v" + version + "_";
+        try (DirectoryStream<Path> paths = Files.newDirectoryStream(imageDir, "*" + SUFFIX)) {
+            for (Path path : paths) {
+                if (!path.getFileName().toString().startsWith(prefix)) {
+                    size -= Files.size(path);
+                    Files.delete(path);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Deletes the least recently used files until the cache fits in its maximum size.
+     *
+     * @param keep The file which was just written, deleted last.
+     *
+     * @throws IOException If the cache directory cannot be read.
+     */
+    private void evict(Path keep) throws IOException {
+        List<Path> files = files();
+        files.sort(Comparator.comparing((Path p) -> p.equals(keep))
+                             .thenComparing(PixelCache::lastModified));
+        size = 0L;
+        for (Path cached : files) {
+            size += Files.size(cached);
+        }
+        for (Path cached : files) {
+            if (size <= maxBytes) {
+                break;
+            }
+            long bytes = Files.size(cached);
+            try {
+                Files.delete(cached);
+                size -= bytes;
+            } catch (IOException e) {
+                IJ.log("Could not delete cached file " + cached + ": " + e.getMessage());
+            }
+        }
+    }
+
+
+    /**
+     * Returns the last modification time of a file, or the epoch if it cannot be read.
+     *
+     * @param path The file.
+     *
+     * @return See above.
+     */
+    private static FileTime lastModified(Path path) {
+        try {
+            return Files.getLastModifiedTime(path);
+        } catch (IOException e) {
+            return FileTime.fromMillis(0L);
+        }
+    }
+
+}
@@ -0,0 +1,750 @@
+/*
+ *  Copyright (C) 2021-2023 GReD
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package fr.igred.ij.plugin;
+
+
+import fr.igred.omero.Client;
+import fr.igred.omero.exception.OMEROServerError;
+import fr.igred.omero.exception.ServiceException;
+import ij.IJ;
+import ij.CompositeImage;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.ImageProcessor;
+import ij.process.LUT;
+import omero.ServerError;
+import omero.api.IProjectionPrx;
+import omero.api.RawPixelsStorePrx;
+import omero.api.ResolutionDescription;
+import omero.constants.projection.ProjectionType;
+import omero.gateway.exception.DSOutOfServiceException;
+import omero.model.Channel;
+import omero.model.Event;
+import omero.model.IObject;
+import omero.model.Length;
+import omero.model.Pixels;
+import omero.model.PixelsType;
+import omero.model.Time;
+import omero.rtypes;
+import omero.sys.ParametersI;
+
+import java.awt.Color;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+
+/**
+ * Reads planes from the pixel store of an image, keeping a single pixel session open.
+ * <p>Calls are serialized, as the pixel store is a stateful service.
+ */
+class PixelReader implements AutoCloseable {
+
+    /** The query retrieving the pixels of an image. */
+    private static final String QUERY = "select distinct p from Pixels as p join fetch p.image" +
+                                        " join fetch p.pixelsType left outer join fetch p.channels as c" +
+                                        " left outer join fetch c.logicalChannel where p.image.id = :id";
+
+    /** The client. */
+    private final Client client;
+
+    /** The image ID. */
+    private final long imageId;
+
+    /** The image version, i.e. the ID of the last event which updated its pixels or the image itself. */
+    private final long version;
+
+    /** The pixels ID. */
+    private final long pixelsId;
+
+    /** The image name. */
+    private final String name;
+
+    /** The OMERO pixel type. */
+    private final String pixelType;
+
+    /** The image dimensions (XY at the current resolution level). */
+    private int       sizeX;
+    private int       sizeY;
+    private final int sizeZ;
+    private final int sizeC;
+    private final int sizeT;
+
+    /** The physical pixel sizes and time increment (null if unknown). */
+    private final Length pixelSizeX;
+    private final Length pixelSizeY;
+    private final Length pixelSizeZ;
+    private final Time   timeIncrement;
+
+    /** The channel colours (null if unknown). */
+    private final Color[] colors;
+
+    /** The image width at full resolution. */
+    private final int fullSizeX;
+
+    /** The resolution level (0 is the full resolution). */
+    private int level = 0;
+
+    /** The pixel store, opened on first use. */
+    private RawPixelsStorePrx store;
+
+    /** The local pixel cache (null if disabled). */
+    private PixelCache cache;
+
+
+    /**
+     * Retrieves the pixels of an image.
+     *
+     * @param client  The client.
+     * @param imageId The image ID.
+     *
+     * @throws ServiceException Cannot connect to OMERO.
+     * @throws OMEROServerError Server error.
+     */
+    PixelReader(Client client, long imageId) throws ServiceException, OMEROServerError {
+        ParametersI params = new ParametersI();
+        params.addId(imageId);
+        Pixels pixels;
+        try {
+            pixels = (Pixels) client.getQueryService().findByQuery(QUERY, params);
+        } catch (ServerError e) {
+            throw new OMEROServerError("Could not retrieve pixels of image " + imageId, e);
+        }
+        if (pixels == null) {
+            throw new NoSuchElementException("Image not found: " + imageId);
+        }
+
+        this.client = client;
+        this.imageId = imageId;
+        this.version = Math.max(updateEvent(pixels), updateEvent(pixels.getImage()));
+        this.pixelsId = pixels.getId().getValue();
+        this.name = pixels.getImage().getName().getValue();
+        this.sizeX = pixels.getSizeX().getValue();
+        this.fullSizeX = sizeX;
+        this.sizeY = pixels.getSizeY().getValue();
+        this.sizeZ = pixels.getSizeZ().getValue();
+        this.sizeC = pixels.getSizeC().getValue();
+        this.sizeT = pixels.getSizeT().getValue();
+        this.pixelType = pixels.getPixelsType().getValue().getValue();
+        this.pixelSizeX = pixels.getPhysicalSizeX();
+        this.pixelSizeY = pixels.getPhysicalSizeY();
+        this.pixelSizeZ = pixels.getPhysicalSizeZ();
+        this.timeIncrement = pixels.getTimeIncrement();
+        this.colors = new Color[sizeC];
+        List<Channel> channels = pixels.copyChannels();
+        for (int c = 0; c < Math.min(sizeC, channels.size()); c++) {
+            colors[c] = color(channels.get(c));
+        }
+    }
+
+
+    /**
+     * Creates a reader for the same pixels and resolution level, with its own pixel session.
+     *
+     * @param other The reader to copy.
+     */
+    private PixelReader(PixelReader other) {
+        this.client = other.client;
+        this.imageId = other.imageId;
+        this.version = other.version;
+        this.pixelsId = other.pixelsId;
+        this.name = other.name;
+        this.sizeX = other.sizeX;
+        this.sizeY = other.sizeY;
+        this.sizeZ = other.sizeZ;
+        this.sizeC = other.sizeC;
+        this.sizeT = other.sizeT;
+        this.pixelType = other.pixelType;
+        this.pixelSizeX = other.pixelSizeX;
+        this.pixelSizeY = other.pixelSizeY;
+        this.pixelSizeZ = other.pixelSizeZ;
+        this.timeIncrement = other.timeIncrement;
+        this.level = other.level;
+        this.fullSizeX = other.fullSizeX;
+        this.cache = other.cache;
+        this.colors = other.colors;
+    }
+
+
+    /**
+     * Returns the colour of a channel.
+     *
+     * @param channel The channel.
+     *
+     * @return See above, or null if it is not set.
+     */
+    private static Color color(Channel channel) {
+        if (channel == null || channel.getRed() == null || channel.getGreen() == null || channel.getBlue() == null) {
+            return null;
+        }
+        return new Color(channel.getRed().getValue(), channel.getGreen().getValue(), channel.getBlue().getValue());
+    }
+
+
+    /**
+     * Returns the ID of the last event which updated an object.
+     *
+     * @param object The object.
+     *
+     * @return See above, or -1 if it is unknown.
+     */
+    private static long updateEvent(IObject object) {
+        Event event = object.getDetails() == null ? null : object.getDetails().getUpdateEvent();
+        return event == null || event.getId() == null ? -1L : event.getId().getValue();
+    }
+
+
+    /**
+     * Returns the pixel store, opening it if needed.
+     *
+     * @return See above.
+     *
+     * @throws DSOutOfServiceException Cannot connect to OMERO.
+     * @throws ServerError             Server error.
+     */
+    private RawPixelsStorePrx getStore() throws DSOutOfServiceException, ServerError {
+        if (store == null) {
+            RawPixelsStorePrx newStore = client.getGateway().createPixelsStore(client.getCtx());
+            newStore.setPixelsId(pixelsId, false);
+            if (level > 0) {
+                // OMERO numbers levels from the lowest resolution
+                newStore.setResolutionLevel(newStore.getResolutionLevels() - 1 - level);
+            }
+            store = newStore;
+        }
+        return store;
+    }
+
+
+    /**
+     * Sets the local cache used to store planes on disk.
+     *
+     * @param pixelCache The pixel cache (null to disable it).
+     */
+    void setCache(PixelCache pixelCache) {
+        this.cache = pixelCache;
+    }
+
+
+    /**
+     * Returns the image name.
+     *
+     * @return See above.
+     */
+    String getName() {
+        return name;
+    }
+
+
+    /**
+     * Returns the OMERO pixel type.
+     *
+     * @return See above.
+     */
+    String getPixelType() {
+        return pixelType;
+    }
+
+
+    /**
+     * Returns the image width.
+     *
+     * @return See above.
+     */
+    int getSizeX() {
+        return sizeX;
+    }
+
+
+    /**
+     * Returns the image height.
+     *
+     * @return See above.
+     */
+    int getSizeY() {
+        return sizeY;
+    }
+
+
+    /**
+     * Returns the number of slices.
+     *
+     * @return See above.
+     */
+    int getSizeZ() {
+        return sizeZ;
+    }
+
+
+    /**
+     * Returns the number of channels.
+     *
+     * @return See above.
+     */
+    int getSizeC() {
+        return sizeC;
+    }
+
+
+    /**
+     * Returns the number of frames.
+     *
+     * @return See above.
+     */
+    int getSizeT() {
+        return sizeT;
+    }
+
+
+    /**
+     * Returns the number of resolution levels.
+     *
+     * @return See above.
+     *
+     * @throws DSOutOfServiceException Cannot connect to OMERO.
+     * @throws OMEROServerError        Server error.
+     */
+    synchronized int getLevels() throws DSOutOfServiceException, OMEROServerError {
+        try {
+            return getStore().getResolutionLevels();
+        } catch (ServerError e) {
+            throw new OMEROServerError("Could not read resolution levels", e);
+        }
+    }
+
+
+    /**
+     * Selects the resolution level read afterwards. The XY dimensions are updated accordingly.
+     *
+     * @param resolution The resolution level (0 is the full resolution).
+     *
+     * @throws DSOutOfServiceException  Cannot connect to OMERO.
+     * @throws OMEROServerError         Server error.
+     * @throws IllegalArgumentException If the image has no such resolution level.
+     */
+    synchronized void setLevel(int resolution) throws DSOutOfServiceException, OMEROServerError {
+        try {
+            RawPixelsStorePrx pixelsStore = getStore();
+            int               levels      = pixelsStore.getResolutionLevels();
+            if (resolution < 0 || resolution >= levels) {
+                String error = "Invalid resolution level: %d (the image has %d levels)";
+                throw new IllegalArgumentException(String.format(Locale.ROOT, error, resolution, levels));
+            }
+            pixelsStore.setResolutionLevel(levels - 1 - resolution);
+            ResolutionDescription description = pixelsStore.getResolutionDescriptions().get(resolution);
+            level = resolution;
+            sizeX = description.sizeX;
+            sizeY = description.sizeY;
+        } catch (ServerError e) {
+            throw new OMEROServerError("Could not set resolution level", e);
+        }
+    }
+
+
+    /**
+     * Returns the preferred tile size of the pixel store.
+     *
+     * @return The tile width and height.
+     *
+     * @throws DSOutOfServiceException Cannot connect to OMERO.
+     * @throws OMEROServerError        Server error.
+     */
+    synchronized int[] getTileSize() throws DSOutOfServiceException, OMEROServerError {
+        try {
+            return getStore().getTileSize();
+        } catch (ServerError e) {
+            throw new OMEROServerError("Could not read tile size", e);
+        }
+    }
+
+
+    /**
+     * Reads a tile.
+     *
+     * @param z      The slice index (starting from 0).
+     * @param c      The channel index (starting from 0).
+     * @param t      The frame index (starting from 0).
+     * @param x      The left coordinate of the tile.
+     * @param y      The top coordinate of the tile.
+     * @param width  The tile width.
+     * @param height The tile height.
+     *
+     * @return The tile.
+     *
+     * @throws DSOutOfServiceException Cannot connect to OMERO.
+     * @throws OMEROServerError        Server error.
+     */
+    ImageProcessor getTile(int z, int c, int t, int x, int y, int width, int height)
+    throws DSOutOfServiceException, OMEROServerError {
+        ImageProcessor ip = Planes.createProcessor(width, height, pixelType);
+        readInto(new int[]{z, c, t}, x, y, width, height, ip.getPixels());
+        return ip;
+    }
+
+
+    /**
+     * Reads a plane.
+     *
+     * @param z The slice index (starting from 0).
+     * @param c The channel index (starting from 0).
+     * @param t The frame index (starting from 0).
+     *
+     * @return The plane.
+     *
+     * @throws DSOutOfServiceException Cannot connect to OMERO.
+     * @throws OMEROServerError        Server error.
+     */
+    synchronized ImageProcessor getPlane(int z, int c, int t) throws DSOutOfServiceException, OMEROServerError {
+        return getTile(z, c, t, 0, 0, sizeX, sizeY);
+    }
+
+
+    /**
+     * Reads a plane, or a region of a plane, into an existing pixel array.
+     * <p>If a local cache is set, the region is read from it when possible, and stored in it otherwise.
+     *
+     * @param zct    The slice, channel and frame indices (starting from 0).
+     * @param x      The left coordinate of the region.
+     * @param y      The top coordinate of the region.
+     * @param width  The region width.
+     * @param height The region height.
+     * @param pixels The pixel array.
+     *
+     * @throws DSOutOfServiceException Cannot connect to OMERO.
+     * @throws OMEROServerError        Server error.
+     */
+    private synchronized void readInto(int[] zct, int x, int y, int width, int height, Object pixels)
+    throws DSOutOfServiceException, OMEROServerError {
+        int[] region     = {level, x, y, width, height};
+        int   planes     = sizeZ * sizeC * sizeT;
+        int   plane      = zct[0] + sizeZ * (zct[1] + sizeC * zct[2]);
+        int   planeBytes = width * height * Planes.bytesPerPixel(pixelType);
+        if (cache != null) {
+            try {
+                ByteBuffer cached = cache.get(imageId, version, region, planes, plane, planeBytes);
+                if (cached != null) {
+                    Planes.decode(cached, pixels, pixelType);
+                    return;
+                }
+            } catch (IOException e) {
+                IJ.log("Could not read from pixel cache: " + e.getMessage());
+            }
+        }
+
+        boolean whole = x == 0 && y == 0 && width == sizeX && height == sizeY;
+        byte[]  bytes;
+        try {
+            RawPixelsStorePrx pixelsStore = getStore();
+            bytes = whole ?
+                    pixelsStore.getPlane(zct[0], zct[1], zct[2]) :
+                    pixelsStore.getTile(zct[0], zct[1], zct[2], x, y, width, height);
+        } catch (ServerError e) {
+            throw new OMEROServerError("Could not read plane", e);
+        }
+        Planes.decode(bytes, pixels, pixelType);
+
+        if (cache != null) {
+            try {
+                cache.put(imageId, version, region, planes, plane, bytes);
+            } catch (IOException e) {
+                IJ.log("Could not write to pixel cache: " + e.getMessage());
+            }
+        }
+    }
+
+
+    /**
+     * Lists the selected planes in ImageJ order (C, then Z, then T).
+     *
+     * @param zs The slice indices.
+     * @param cs The channel indices.
+     * @param ts The frame indices.
+     *
+     * @return The ZCT indices of each plane.
+     */
+    private static int[][] planes(int[] zs, int[] cs, int[] ts) {
+        int[][] planes = new int[zs.length * cs.length * ts.length][];
+        int     i      = 0;
+        for (int t : ts) {
+            for (int z : zs) {
+                for (int c : cs) {
+                    planes[i++] = new int[]{z, c, t};
+                }
+            }
+        }
+        return planes;
+    }
+
+
+    /**
+     * Returns the calibration of the current resolution level.
+     *
+     * @return See above.
+     */
+    Calibration getCalibration() {
+        Calibration calibration = new Calibration();
+        double      scale       = (double) fullSizeX / sizeX;
+        if (pixelSizeX != null) {
+            calibration.pixelWidth = pixelSizeX.getValue() * scale;
+            calibration.setXUnit(pixelSizeX.getSymbol());
+        }
+        if (pixelSizeY != null) {
+            calibration.pixelHeight = pixelSizeY.getValue() * scale;
+            calibration.setYUnit(pixelSizeY.getSymbol());
+        }
+        if (pixelSizeZ != null) {
+            calibration.pixelDepth = pixelSizeZ.getValue();
+            calibration.setZUnit(pixelSizeZ.getSymbol());
+        }
+        if (timeIncrement != null) {
+            calibration.frameInterval = timeIncrement.getValue();
+            calibration.setTimeUnit(timeIncrement.getSymbol());
+        }
+        return calibration;
+    }
+
+
+    /**
+     * Sets the calibration, channel colours and display mode of an image, as they are set on images opened with
+     * {@code ImageWrapper.toImagePlus}: images with several channels are shown as composites.
+     *
+     * @param imp The image.
+     * @param cs  The channel indices in the image.
+     *
+     * @return The image, or a composite image wrapping it.
+     */
+    ImagePlus setDisplay(ImagePlus imp, int[] cs) {
+        ImagePlus result = imp;
+        if (cs.length > 1) {
+            result = new CompositeImage(imp, IJ.COMPOSITE);
+        }
+        result.setCalibration(getCalibration());
+        for (int i = 0; i < cs.length; i++) {
+            Color color = colors[cs[i]];
+            if (color != null) {
+                LUT lut = LUT.createLutFromColor(color);
+                if (result instanceof CompositeImage) {
+                    ((CompositeImage) result).setChannelLut(lut, i + 1);
+                } else {
+                    result.setLut(lut);
+                }
+            }
+        }
+        if (result instanceof CompositeImage) {
+            ((CompositeImage) result).resetDisplayRanges();
+        } else {
+            result.resetDisplayRange();
+        }
+        return result;
+    }
+
+
+    /**
+     * Creates an image from planes read from this reader.
+     *
+     * @param title The title of the image.
+     * @param stack The planes.
+     * @param x     The left coordinate of the region.
+     * @param y     The top coordinate of the region.
+     * @param zs    The slice indices.
+     * @param cs    The channel indices.
+     * @param ts    The frame indices.
+     *
+     * @return See above.
+     */
+    private ImagePlus toImagePlus(String title, ImageStack stack, int x, int y, int[] zs, int[] cs, int[] ts) {
+        ImagePlus imp = new ImagePlus(title, stack);
+        imp.setDimensions(cs.length, zs.length, ts.length);
+        if (cs.length > 1 || ts.length > 1) {
+            imp.setOpenAsHyperStack(true);
+        }
+        imp = setDisplay(imp, cs);
+        imp.setProp("IMAGE_POS_X", x);
+        imp.setProp("IMAGE_POS_Y", y);
+        imp.setProp("IMAGE_POS_C", cs[0]);
+        imp.setProp("IMAGE_POS_Z", zs[0]);
+        imp.setProp("IMAGE_POS_T", ts[0]);
+        imp.setProp("IMAGE_RESOLUTION_LEVEL", level);
+        return imp;
+    }
+
+
+    /**
+     * Reads a region of the selected planes.
+     *
+     * @param title  The title of the image.
+     * @param x      The left coordinate of the region.
+     * @param y      The top coordinate of the region.
+     * @param width  The region width.
+     * @param height The region height.
+     * @param zs     The slice indices (starting from 0).
+     * @param cs     The channel indices (starting from 0).
+     * @param ts     The frame indices (starting from 0).
+     *
+     * @return The region, as an {@link ImagePlus}.
+     *
+     * @throws DSOutOfServiceException Cannot connect to OMERO.
+     * @throws OMEROServerError        Server error.
+     */
+    ImagePlus read(String title, int x, int y, int width, int height, int[] zs, int[] cs, int[] ts)
+    throws DSOutOfServiceException, OMEROServerError {
+        int[][]    planes = planes(zs, cs, ts);
+        ImageStack stack  = ImageStack.create(width, height, planes.length, Planes.bitDepth(pixelType));
+        for (int i = 0; i < planes.length; i++) {
+            readInto(planes[i], x, y, width, height, stack.getPixels(i + 1));
+        }
+        return toImagePlus(title, stack, x, y, zs, cs, ts);
+    }
+
+
+    /**
+     * Reads a region of the selected planes in parallel, each thread using its own pixel session. Planes are
+     * written directly into the pixel arrays of the image.
+     *
+     * @param title   The title of the image.
+     * @param x       The left coordinate of the region.
+     * @param y       The top coordinate of the region.
+     * @param width   The region width.
+     * @param height  The region height.
+     * @param zs      The slice indices (starting from 0).
+     * @param cs      The channel indices (starting from 0).
+     * @param ts      The frame indices (starting from 0).
+     * @param threads The number of planes read concurrently.
+     *
+     * @return The region, as an {@link ImagePlus}.
+     *
+     * @throws DSOutOfServiceException Cannot connect to OMERO.
+     * @throws OMEROServerError        Server error.
+     * @throws InterruptedException    The thread was interrupted.
+     */
+    ImagePlus read(String title, int x, int y, int width, int height, int[] zs, int[] cs, int[] ts, int threads)
+    throws DSOutOfServiceException, OMEROServerError, InterruptedException {
+        int[][] planes  = planes(zs, cs, ts);
+        int     workers = Math.min(threads, planes.length);
+        if (workers <= 1) {
+            return read(title, x, y, width, height, zs, cs, ts);
+        }
+
+        ImageStack        stack   = ImageStack.create(width, height, planes.length, Planes.bitDepth(pixelType));
+        List<PixelReader> readers = new ArrayList<>(workers);
+        readers.add(this);
+        for (int i = 1; i < workers; i++) {
+            readers.add(new PixelReader(this));
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(workers);
+        try {
+            List<Future<?>> futures = new ArrayList<>(workers);
+            for (int w = 0; w < workers; w++) {
+                PixelReader reader = readers.get(w);
+                int         first  = w;
+                futures.add(executor.submit(() -> {
+                    for (int i = first; i < planes.length; i += workers) {
+                        reader.readInto(planes[i], x, y, width, height, stack.getPixels(i + 1));
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    throw new OMEROServerError("Could not read planes", e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+            readers.subList(1, workers).forEach(PixelReader::close);
+        }
+        return toImagePlus(title, stack, x, y, zs, cs, ts);
+    }
+
+
+    /**
+     * Projects a range of slices on the server, for the selected channels and frames. Only the projected planes are
+     * transferred. Sums are computed as floating-point values, so that they do not overflow.
+     *
+     * @param title     The title of the image.
+     * @param algorithm The projection algorithm.
+     * @param zStart    The first slice (starting from 0).
+     * @param zEnd      The last slice (included).
+     * @param cs        The channel indices (starting from 0).
+     * @param ts        The frame indices (starting from 0).
+     *
+     * @return The projection, as an {@link ImagePlus}.
+     *
+     * @throws ServiceException         Cannot connect to OMERO.
+     * @throws DSOutOfServiceException  Cannot connect to OMERO.
+     * @throws OMEROServerError         Server error.
+     * @throws IllegalArgumentException If the slice range is invalid.
+     */
+    ImagePlus project(String title, ProjectionType algorithm, int zStart, int zEnd, int[] cs, int[] ts)
+    throws ServiceException, DSOutOfServiceException, OMEROServerError {
+        if (zStart < 0 || zEnd < zStart || zStart >= sizeZ) {
+            String error = "Invalid slice range: %d-%d (the image has %d slices)";
+            throw new IllegalArgumentException(String.format(Locale.ROOT, error, zStart, zEnd, sizeZ));
+        }
+        int last = Math.min(zEnd, sizeZ - 1);
+
+        String     type       = pixelType;
+        PixelsType targetType = null;
+        try {
+            if (algorithm == ProjectionType.SUMINTENSITY) {
+                ParametersI params = new ParametersI();
+                params.add("value", rtypes.rstring(Planes.FLOAT));
+                String query = "select t from PixelsType as t where t.value = :value";
+                targetType = (PixelsType) client.getQueryService().findByQuery(query, params);
+                type = Planes.FLOAT;
+            }
+
+            IProjectionPrx projection = client.getGateway().getProjectionService(client.getCtx());
+            ImageStack     stack      = new ImageStack(sizeX, sizeY);
+            for (int t : ts) {
+                for (int c : cs) {
+                    byte[] bytes = projection.projectStack(pixelsId, targetType, algorithm, t, c, 1, zStart, last);
+                    stack.addSlice(Planes.toProcessor(bytes, sizeX, sizeY, type));
+                }
+            }
+            return toImagePlus(title, stack, 0, 0, new int[]{zStart}, cs, ts);
+        } catch (ServerError e) {
+            throw new OMEROServerError("Could not project image " + imageId, e);
+        }
+    }
+
+
+    /**
+     * Closes the pixel store. It is opened again if more planes are read.
+     */
+    @Override
+    public synchronized void close() {
+        if (store != null) {
+            try {
+                store.close();
+            } catch (ServerError e) {
+                IJ.log("Could not close pixel store: " + e.getMessage());
+            }
+            store = null;
+        }
+    }
+
+}
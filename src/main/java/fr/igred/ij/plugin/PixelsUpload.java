@@ -0,0 +1,338 @@
+/*
+ *  Copyright (C) 2021-2023 GReD
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package fr.igred.ij.plugin;
+
+
+import fr.igred.omero.Client;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.ImageProcessor;
+import omero.RLong;
+import omero.ServerError;
+import omero.api.IPixelsPrx;
+import omero.api.IQueryPrx;
+import omero.api.RawPixelsStorePrx;
+import omero.cmd.CmdCallbackI;
+import omero.gateway.Gateway;
+import omero.gateway.SecurityContext;
+import omero.gateway.exception.DSAccessException;
+import omero.gateway.exception.DSOutOfServiceException;
+import omero.model.DatasetI;
+import omero.model.DatasetImageLinkI;
+import omero.model.IObject;
+import omero.model.Image;
+import omero.model.ImageI;
+import omero.model.Length;
+import omero.model.LengthI;
+import omero.model.LogicalChannel;
+import omero.model.Pixels;
+import omero.model.PixelsType;
+import omero.model.Time;
+import omero.model.TimeI;
+import omero.model.enums.UnitsLength;
+import omero.model.enums.UnitsTime;
+import omero.rtypes;
+import omero.sys.ParametersI;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+
+/**
+ * Creates images on OMERO from ImageJ images, writing the planes straight to the pixel store.
+ * <p>No file is written locally: each plane is sent in chunks of rows, so that large planes never have to be
+ * converted at once.
+ */
+final class PixelsUpload {
+
+    /** The maximum number of bytes sent at once. */
+    private static final int CHUNK_BYTES = 8 * 1024 * 1024;
+
+    /** The maximum time to wait for an incomplete image to be deleted, in milliseconds. */
+    private static final int DELETE_TIMEOUT_MS = 10000;
+
+
+    /** Prevent instantiation of utility class. */
+    private PixelsUpload() {
+    }
+
+
+    /**
+     * Retrieves the OMERO pixel type with the specified value.
+     *
+     * @param service The pixels service.
+     * @param value   The pixel type value.
+     *
+     * @return See above.
+     *
+     * @throws ServerError Server error.
+     */
+    private static PixelsType getPixelsType(IPixelsPrx service, String value) throws ServerError {
+        List<IObject> types = service.getAllEnumerations(PixelsType.class.getName());
+        return types.stream()
+                    .map(PixelsType.class::cast)
+                    .filter(t -> value.equals(t.getValue().getValue()))
+                    .findFirst()
+                    .orElseThrow(() -> new IllegalArgumentException("Unknown pixel type: " + value));
+    }
+
+
+    /**
+     * Converts an ImageJ length unit to an OMERO length, if it is known.
+     *
+     * @param value The length.
+     * @param unit  The ImageJ unit.
+     *
+     * @return The length, or null if the unit is unknown or the image is not calibrated.
+     */
+    private static Length toLength(double value, String unit) {
+        UnitsLength units;
+        switch (unit == null ? "" : unit.trim().toLowerCase(Locale.ROOT)) {
+            case "nm":
+            case "nanometer":
+                units = UnitsLength.NANOMETER;
+                break;
+            case "µm":
+            case "um":
+            case "micron":
+            case "microns":
+            case "micrometer":
+                units = UnitsLength.MICROMETER;
+                break;
+            case "mm":
+            case "millimeter":
+                units = UnitsLength.MILLIMETER;
+                break;
+            case "cm":
+            case "centimeter":
+                units = UnitsLength.CENTIMETER;
+                break;
+            case "m":
+            case "meter":
+                units = UnitsLength.METER;
+                break;
+            default:
+                return null;
+        }
+        return value > 0 ? new LengthI(value, units) : null;
+    }
+
+
+    /**
+     * Converts an ImageJ time unit to an OMERO time, if it is known.
+     *
+     * @param value The time.
+     * @param unit  The ImageJ unit.
+     *
+     * @return The time, or null if the unit is unknown or the time is not set.
+     */
+    private static Time toTime(double value, String unit) {
+        UnitsTime units;
+        switch (unit == null ? "" : unit.trim().toLowerCase(Locale.ROOT)) {
+            case "ms":
+            case "msec":
+                units = UnitsTime.MILLISECOND;
+                break;
+            case "s":
+            case "sec":
+                units = UnitsTime.SECOND;
+                break;
+            case "min":
+                units = UnitsTime.MINUTE;
+                break;
+            case "h":
+            case "hr":
+                units = UnitsTime.HOUR;
+                break;
+            default:
+                return null;
+        }
+        return value > 0 ? new TimeI(value, units) : null;
+    }
+
+
+    /**
+     * Copies the calibration and channel names of an ImageJ image to the pixels of a new image.
+     *
+     * @param gateway The gateway.
+     * @param ctx     The security context.
+     * @param imp     The ImageJ image.
+     * @param imageId The new image ID.
+     *
+     * @return The pixels ID.
+     *
+     * @throws DSOutOfServiceException Cannot connect to OMERO.
+     * @throws ServerError             Server error.
+     */
+    private static long setMetadata(Gateway gateway, SecurityContext ctx, ImagePlus imp, long imageId)
+    throws DSOutOfServiceException, ServerError {
+        ParametersI params = new ParametersI();
+        params.addId(imageId);
+        IQueryPrx query  = gateway.getQueryService(ctx);
+        Pixels    pixels = (Pixels) query.findByQuery("select p from Pixels p where p.image.id = :id", params);
+        List<IObject> channels = query.findAllByQuery("select lc from Pixels p join p.channels c" +
+                                                      " join c.logicalChannel lc where p.image.id = :id" +
+                                                      " order by index(c)", params);
+
+        Calibration calibration = imp.getCalibration();
+        pixels.setPhysicalSizeX(toLength(calibration.pixelWidth, calibration.getXUnit()));
+        pixels.setPhysicalSizeY(toLength(calibration.pixelHeight, calibration.getYUnit()));
+        pixels.setPhysicalSizeZ(toLength(calibration.pixelDepth, calibration.getZUnit()));
+        pixels.setTimeIncrement(toTime(calibration.frameInterval, calibration.getTimeUnit()));
+
+        List<IObject> modified = new ArrayList<>(channels.size() + 1);
+        modified.add(pixels);
+        for (int c = 0; c < channels.size(); c++) {
+            String label = imp.getStack().getSliceLabel(imp.getStackIndex(c + 1, 1, 1));
+            if (label != null && !label.trim().isEmpty()) {
+                // Labels may hold metadata on the following lines
+                String name = label.split("\\R", 2)[0].trim();
+                ((LogicalChannel) channels.get(c)).setName(rtypes.rstring(name));
+                modified.add(channels.get(c));
+            }
+        }
+        gateway.getUpdateService(ctx).saveArray(modified);
+        return pixels.getId().getValue();
+    }
+
+
+    /**
+     * Deletes an image which could not be uploaded completely.
+     *
+     * @param client  The client.
+     * @param imageId The image ID.
+     */
+    private static void deleteImage(Client client, long imageId) {
+        try {
+            CmdCallbackI callback = client.getDm().delete(client.getCtx(),
+                                                         Collections.singletonList(new ImageI(imageId, false)));
+            callback.block(DELETE_TIMEOUT_MS);
+            callback.close(true);
+        } catch (ExecutionException | DSOutOfServiceException | DSAccessException | ServerError e) {
+            IJ.log("Could not delete incomplete image " + imageId + ": " + e.getMessage());
+        } catch (InterruptedException e) {
+            IJ.log("Could not delete incomplete image " + imageId + ": " + e.getMessage());
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    /**
+     * Creates an image on OMERO from an ImageJ image and adds it to a dataset.
+     * <p>The calibration and channel names are copied. If the planes cannot be written, the new image is deleted.
+     *
+     * @param client    The client.
+     * @param imp       The ImageJ image.
+     * @param datasetId The dataset ID.
+     *
+     * @return The new image ID.
+     *
+     * @throws DSOutOfServiceException Cannot connect to OMERO.
+     * @throws ServerError             Server error.
+     */
+    static long upload(Client client, ImagePlus imp, long datasetId)
+    throws DSOutOfServiceException, ServerError {
+        Gateway         gateway = client.getGateway();
+        SecurityContext ctx     = client.getCtx();
+
+        String pixelType = Planes.pixelType(imp);
+        int    sizeX     = imp.getWidth();
+        int    sizeY     = imp.getHeight();
+        int    sizeZ     = imp.getNSlices();
+        int    sizeC     = imp.getNChannels();
+        int    sizeT     = imp.getNFrames();
+
+        IPixelsPrx    pixelsService = gateway.getPixelsService(ctx);
+        List<Integer> channels      = IntStream.range(0, sizeC).boxed().collect(Collectors.toList());
+        RLong imageId = pixelsService.createImage(sizeX, sizeY, sizeZ, sizeT, channels,
+                                                  getPixelsType(pixelsService, pixelType),
+                                                  imp.getTitle(), "");
+        try {
+            long pixelsId = setMetadata(gateway, ctx, imp, imageId.getValue());
+            writePlanes(gateway, ctx, imp, pixelsId);
+
+            DatasetImageLinkI link = new DatasetImageLinkI();
+            link.setParent(new DatasetI(datasetId, false));
+            link.setChild(new ImageI(imageId.getValue(), false));
+            gateway.getUpdateService(ctx).saveObject(link);
+        } catch (DSOutOfServiceException | ServerError | RuntimeException e) {
+            deleteImage(client, imageId.getValue());
+            throw e;
+        }
+
+        gateway.getRenderingSettingsService(ctx)
+               .resetDefaultsInSet(Image.class.getName(), Collections.singletonList(imageId.getValue()));
+        return imageId.getValue();
+    }
+
+
+    /**
+     * Writes the planes of an ImageJ image to the pixel store.
+     *
+     * @param gateway  The gateway.
+     * @param ctx      The security context.
+     * @param imp      The ImageJ image.
+     * @param pixelsId The pixels ID.
+     *
+     * @throws DSOutOfServiceException Cannot connect to OMERO.
+     * @throws ServerError             Server error.
+     */
+    private static void writePlanes(Gateway gateway, SecurityContext ctx, ImagePlus imp, long pixelsId)
+    throws DSOutOfServiceException, ServerError {
+        String pixelType = Planes.pixelType(imp);
+        int    sizeX     = imp.getWidth();
+        int    sizeY     = imp.getHeight();
+        int    sizeZ     = imp.getNSlices();
+        int    sizeC     = imp.getNChannels();
+        int    sizeT     = imp.getNFrames();
+
+        int rowBytes = sizeX * Planes.bytesPerPixel(pixelType);
+        int rows     = Math.max(1, Math.min(sizeY, CHUNK_BYTES / rowBytes));
+
+        ImageStack        stack = imp.getStack();
+        RawPixelsStorePrx store = gateway.createPixelsStore(ctx);
+        try {
+            store.setPixelsId(pixelsId, true);
+            for (int t = 0; t < sizeT; t++) {
+                for (int z = 0; z < sizeZ; z++) {
+                    for (int c = 0; c < sizeC; c++) {
+                        ImageProcessor ip = stack.getProcessor(imp.getStackIndex(c + 1, z + 1, t + 1));
+                        if (rows == sizeY) {
+                            store.setPlane(Planes.toBytes(ip, 0, sizeY), z, c, t);
+                        } else {
+                            for (int y = 0; y < sizeY; y += rows) {
+                                int h = Math.min(rows, sizeY - y);
+                                store.setTile(Planes.toBytes(ip, y, h), z, c, t, 0, y, sizeX, h);
+                            }
+                        }
+                    }
+                }
+                IJ.showProgress(t + 1, sizeT);
+            }
+            store.save();
+        } finally {
+            store.close();
+        }
+    }
+
+}
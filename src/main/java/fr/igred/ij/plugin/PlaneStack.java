@@ -0,0 +1,182 @@
+/*
+ *  Copyright (C) 2021-2023 GReD
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package fr.igred.ij.plugin;
+
+
+import fr.igred.omero.exception.OMEROServerError;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.VirtualStack;
+import ij.process.ImageProcessor;
+import omero.gateway.exception.DSOutOfServiceException;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+
+/**
+ * Virtual stack reading its planes from OMERO when they are displayed or processed.
+ * <p>The most recently used planes are kept in memory, up to a maximum number of bytes.
+ */
+class PlaneStack extends VirtualStack {
+
+    /** The pixel reader. */
+    private final PixelReader reader;
+
+    /** The maximum number of bytes used by cached planes. */
+    private final long budget;
+
+    /** The cached planes, from the least to the most recently used. */
+    private final Map<Integer, ImageProcessor> cache = new LinkedHashMap<>(16, 0.75f, true);
+
+    /** The number of bytes used by cached planes. */
+    private long cached;
+
+    /** Whether a plane could not be read already. */
+    private boolean failed = false;
+
+
+    /**
+     * Creates a virtual stack for an image on OMERO.
+     *
+     * @param reader The pixel reader.
+     * @param budget The maximum number of bytes used by cached planes.
+     */
+    PlaneStack(PixelReader reader, long budget) {
+        super(reader.getSizeX(), reader.getSizeY(), null, null);
+        this.reader = reader;
+        this.budget = budget;
+        setBitDepth(Planes.bitDepth(reader.getPixelType()));
+    }
+
+
+    /**
+     * Creates an image backed by this stack.
+     *
+     * @return The image.
+     */
+    ImagePlus toImagePlus() {
+        ImagePlus imp = new ImagePlus(reader.getName(), this);
+        imp.setDimensions(reader.getSizeC(), reader.getSizeZ(), reader.getSizeT());
+        imp.setCalibration(reader.getCalibration());
+        if (imp.getNChannels() > 1 || imp.getNFrames() > 1) {
+            imp.setOpenAsHyperStack(true);
+        }
+        return imp;
+    }
+
+
+    /**
+     * Returns the size of a processor, in bytes.
+     *
+     * @param ip The processor.
+     *
+     * @return See above.
+     */
+    private static long bytes(ImageProcessor ip) {
+        return (long) ip.getPixelCount() * ip.getBitDepth() / 8;
+    }
+
+
+    /**
+     * Returns the ZCT indices (starting from 0) of a plane in the stack.
+     *
+     * @param n The plane index, in ImageJ order (starting from 1).
+     *
+     * @return See above.
+     */
+    private int[] position(int n) {
+        int sizeC = reader.getSizeC();
+        int sizeZ = reader.getSizeZ();
+        int i     = n - 1;
+        return new int[]{i / sizeC % sizeZ, i % sizeC, i / (sizeC * sizeZ)};
+    }
+
+
+    /**
+     * Removes the least recently used planes until the cache fits in its budget.
+     */
+    private void evict() {
+        Iterator<ImageProcessor> it = cache.values().iterator();
+        while (cached > budget && it.hasNext()) {
+            cached -= bytes(it.next());
+            it.remove();
+        }
+    }
+
+
+    @Override
+    public synchronized ImageProcessor getProcessor(int n) {
+        ImageProcessor ip = cache.get(n);
+        if (ip == null) {
+            int[] zct = position(n);
+            try {
+                ip = reader.getPlane(zct[0], zct[1], zct[2]);
+            } catch (DSOutOfServiceException | OMEROServerError e) {
+                // Planes are read while painting: only the first failure opens a dialog
+                String message = "Could not read plane " + n + ": " + e.getMessage();
+                if (failed) {
+                    IJ.log(message);
+                } else {
+                    failed = true;
+                    IJ.error(message);
+                }
+                int bytes = getWidth() * getHeight() * Planes.bytesPerPixel(reader.getPixelType());
+                return Planes.toProcessor(new byte[bytes], getWidth(), getHeight(), reader.getPixelType());
+            }
+            cache.put(n, ip);
+            cached += bytes(ip);
+            evict();
+        }
+        // Callers may modify the processor: the cached plane is left untouched
+        return ip.duplicate();
+    }
+
+
+    @Override
+    public Object getPixels(int n) {
+        return getProcessor(n).getPixels();
+    }
+
+
+    @Override
+    public int getSize() {
+        return reader.getSizeZ() * reader.getSizeC() * reader.getSizeT();
+    }
+
+
+    @Override
+    public String getSliceLabel(int n) {
+        int[] zct = position(n);
+        return String.format(Locale.ROOT, "c:%d/%d z:%d/%d t:%d/%d",
+                             zct[1] + 1, reader.getSizeC(),
+                             zct[0] + 1, reader.getSizeZ(),
+                             zct[2] + 1, reader.getSizeT());
+    }
+
+
+    /**
+     * Releases the cached planes and closes the pixel store.
+     */
+    synchronized void close() {
+        cache.clear();
+        cached = 0;
+        reader.close();
+    }
+
+}
@@ -0,0 +1,269 @@
+/*
+ *  Copyright (C) 2021-2023 GReD
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package fr.igred.ij.plugin;
+
+
+import ij.ImagePlus;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+
+/**
+ * Converts ImageJ processors to and from the raw (big-endian) pixel data exchanged with the OMERO pixel store.
+ */
+final class Planes {
+
+    /** OMERO pixel types. */
+    static final String UINT8  = "uint8";
+    static final String INT8   = "int8";
+    static final String UINT16 = "uint16";
+    static final String INT16  = "int16";
+    static final String FLOAT  = "float";
+    static final String DOUBLE = "double";
+    static final String UINT32 = "uint32";
+    static final String INT32  = "int32";
+
+
+    /** Prevent instantiation of utility class. */
+    private Planes() {
+    }
+
+
+    /**
+     * Returns the OMERO pixel type matching an ImageJ image.
+     *
+     * @param imp The image.
+     *
+     * @return See above.
+     *
+     * @throws IllegalArgumentException If the image type is not supported.
+     */
+    static String pixelType(ImagePlus imp) {
+        String type;
+        switch (imp.getBitDepth()) {
+            case 8:
+                type = UINT8;
+                break;
+            case 16:
+                type = UINT16;
+                break;
+            case 32:
+                type = FLOAT;
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported image type: RGB images must be converted first");
+        }
+        return type;
+    }
+
+
+    /**
+     * Returns the number of bytes per pixel for an OMERO pixel type.
+     *
+     * @param pixelType The OMERO pixel type.
+     *
+     * @return See above.
+     */
+    static int bytesPerPixel(String pixelType) {
+        int bytes;
+        switch (pixelType) {
+            case INT8:
+            case UINT8:
+                bytes = 1;
+                break;
+            case INT16:
+            case UINT16:
+                bytes = 2;
+                break;
+            case DOUBLE:
+                bytes = 8;
+                break;
+            default:
+                bytes = 4;
+        }
+        return bytes;
+    }
+
+
+    /**
+     * Returns the ImageJ bit depth used for an OMERO pixel type. Signed and 32-bit integer types are converted to
+     * floats, as ImageJ has no equivalent.
+     *
+     * @param pixelType The OMERO pixel type.
+     *
+     * @return See above.
+     */
+    static int bitDepth(String pixelType) {
+        int bitDepth;
+        switch (pixelType) {
+            case UINT8:
+                bitDepth = 8;
+                break;
+            case UINT16:
+                bitDepth = 16;
+                break;
+            default:
+                bitDepth = 32;
+        }
+        return bitDepth;
+    }
+
+
+    /**
+     * Decodes raw big-endian pixel data into an existing pixel array, of the type used by ImageJ for the pixel type
+     * (see {@link #bitDepth(String)}).
+     *
+     * @param bytes     The raw pixel data.
+     * @param pixels    The pixel array (byte[], short[] or float[]).
+     * @param pixelType The OMERO pixel type.
+     */
+    static void decode(byte[] bytes, Object pixels, String pixelType) {
+        decode(ByteBuffer.wrap(bytes), pixels, pixelType);
+    }
+
+
+    /**
+     * Decodes raw big-endian pixel data into an existing pixel array, of the type used by ImageJ for the pixel type
+     * (see {@link #bitDepth(String)}).
+     *
+     * @param data      The raw pixel data, from its current position.
+     * @param pixels    The pixel array (byte[], short[] or float[]).
+     * @param pixelType The OMERO pixel type.
+     */
+    static void decode(ByteBuffer data, Object pixels, String pixelType) {
+        ByteBuffer buffer = data.order(ByteOrder.BIG_ENDIAN);
+        if (UINT8.equals(pixelType)) {
+            buffer.get((byte[]) pixels);
+        } else if (UINT16.equals(pixelType)) {
+            buffer.asShortBuffer().get((short[]) pixels);
+        } else {
+            float[] values = (float[]) pixels;
+            int     size   = values.length;
+            switch (pixelType) {
+                case INT8:
+                    for (int i = 0; i < size; i++) {
+                        values[i] = buffer.get();
+                    }
+                    break;
+                case INT16:
+                    for (int i = 0; i < size; i++) {
+                        values[i] = buffer.getShort();
+                    }
+                    break;
+                case INT32:
+                    for (int i = 0; i < size; i++) {
+                        values[i] = buffer.getInt();
+                    }
+                    break;
+                case UINT32:
+                    for (int i = 0; i < size; i++) {
+                        values[i] = buffer.getInt() & 0xFFFFFFFFL;
+                    }
+                    break;
+                case DOUBLE:
+                    for (int i = 0; i < size; i++) {
+                        values[i] = (float) buffer.getDouble();
+                    }
+                    break;
+                default:
+                    buffer.asFloatBuffer().get(values);
+            }
+        }
+    }
+
+
+    /**
+     * Creates an empty processor for the specified pixel type.
+     *
+     * @param width     The width of the plane (or tile).
+     * @param height    The height of the plane (or tile).
+     * @param pixelType The OMERO pixel type.
+     *
+     * @return The processor.
+     */
+    static ImageProcessor createProcessor(int width, int height, String pixelType) {
+        ImageProcessor ip;
+        switch (bitDepth(pixelType)) {
+            case 8:
+                ip = new ByteProcessor(width, height);
+                break;
+            case 16:
+                ip = new ShortProcessor(width, height);
+                break;
+            default:
+                ip = new FloatProcessor(width, height);
+        }
+        return ip;
+    }
+
+
+    /**
+     * Converts raw big-endian pixel data to a processor.
+     *
+     * @param bytes     The raw pixel data.
+     * @param width     The width of the plane (or tile).
+     * @param height    The height of the plane (or tile).
+     * @param pixelType The OMERO pixel type.
+     *
+     * @return The processor.
+     */
+    static ImageProcessor toProcessor(byte[] bytes, int width, int height, String pixelType) {
+        ImageProcessor ip = createProcessor(width, height, pixelType);
+        decode(bytes, ip.getPixels(), pixelType);
+        return ip;
+    }
+
+
+    /**
+     * Converts rows of a processor to raw big-endian pixel data.
+     *
+     * @param ip     The processor.
+     * @param y      The first row.
+     * @param height The number of rows.
+     *
+     * @return The raw pixel data.
+     */
+    static byte[] toBytes(ImageProcessor ip, int y, int height) {
+        int width = ip.getWidth();
+        int start = y * width;
+        int size  = height * width;
+
+        byte[] bytes;
+        if (ip instanceof ByteProcessor) {
+            bytes = new byte[size];
+            System.arraycopy((byte[]) ip.getPixels(), start, bytes, 0, size);
+        } else if (ip instanceof ShortProcessor) {
+            short[]    pixels = (short[]) ip.getPixels();
+            ByteBuffer buffer = ByteBuffer.allocate(size * 2).order(ByteOrder.BIG_ENDIAN);
+            buffer.asShortBuffer().put(pixels, start, size);
+            bytes = buffer.array();
+        } else if (ip instanceof FloatProcessor) {
+            float[]    pixels = (float[]) ip.getPixels();
+            ByteBuffer buffer = ByteBuffer.allocate(size * 4).order(ByteOrder.BIG_ENDIAN);
+            buffer.asFloatBuffer().put(pixels, start, size);
+            bytes = buffer.array();
+        } else {
+            throw new IllegalArgumentException("Unsupported processor: " + ip.getClass().getSimpleName());
+        }
+        return bytes;
+    }
+
+}
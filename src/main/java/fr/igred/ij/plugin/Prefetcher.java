@@ -0,0 +1,299 @@
+/*
+ *  Copyright (C) 2021-2023 GReD
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package fr.igred.ij.plugin;
+
+
+import fr.igred.omero.Client;
+import fr.igred.omero.repository.PixelsWrapper;
+import ij.ImagePlus;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Loads the next images of a list in background threads, so that they are ready when the macro asks for them.
+ * <p>The images held in memory are bounded both in number (the prefetch depth) and in bytes (the budget). Images
+ * which do not fit in the remaining budget are skipped and loaded normally when requested.
+ */
+class Prefetcher {
+
+    /** The maximum number of loading threads. */
+    private static final int MAX_THREADS = 4;
+
+    /** The IDs of the images left to prefetch. */
+    private final Deque<Long> queue = new ArrayDeque<>(0);
+
+    /** The images being loaded or ready, in prefetch order. */
+    private final Map<Long, Entry> entries = new LinkedHashMap<>(0);
+
+    /** The client used to retrieve image sizes. */
+    private Client client = null;
+
+    /** The function loading images. */
+    private Loader loader = null;
+
+    /** The loading threads. */
+    private ExecutorService executor = null;
+
+    /** The maximum number of images loaded or held at once. */
+    private int depth = 0;
+
+    /** The maximum number of bytes held at once. */
+    private volatile long budget = 0L;
+
+    /** The number of bytes reserved by the current prefetch. */
+    private AtomicLong reserved = new AtomicLong();
+
+
+    /**
+     * Starts prefetching the specified images, replacing any previous prefetch.
+     *
+     * @param client The client.
+     * @param loader The function loading images, as they are loaded when they are not prefetched.
+     * @param ids    The image IDs, in the order they will be requested.
+     * @param depth  The maximum number of images loaded or held at once.
+     * @param budget The maximum number of bytes held at once.
+     */
+    synchronized void prefetch(Client client, Loader loader, Collection<Long> ids, int depth, long budget) {
+        clear();
+        this.client = client;
+        this.loader = loader;
+        this.depth = Math.max(0, depth);
+        this.budget = budget;
+        if (this.depth > 0) {
+            executor = Executors.newFixedThreadPool(Math.min(this.depth, MAX_THREADS), r -> {
+                Thread thread = new Thread(r, "OMERO prefetch");
+                thread.setDaemon(true);
+                return thread;
+            });
+            queue.addAll(ids);
+            fill();
+        }
+    }
+
+
+    /**
+     * Removes an image from the prefetch, along with the images listed before it, which the macro skipped.
+     *
+     * @param id The image ID.
+     *
+     * @return The prefetch entry of the image, or null if it was not submitted.
+     */
+    private synchronized Entry remove(long id) {
+        Entry entry = null;
+        if (entries.containsKey(id) || queue.contains(id)) {
+            // Entries are in prefetch order: those before the image will not be requested
+            Iterator<Map.Entry<Long, Entry>> it = entries.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Long, Entry> next = it.next();
+                if (next.getKey() == id) {
+                    break;
+                }
+                next.getValue().discard();
+                it.remove();
+            }
+            entry = entries.remove(id);
+            if (entry == null) {
+                // The image was not submitted yet: the queued images before it are dropped too
+                Long next = queue.poll();
+                while (next != null && next != id) {
+                    next = queue.poll();
+                }
+            }
+            fill();
+        }
+        return entry;
+    }
+
+
+    /**
+     * Retrieves a prefetched image, waiting for it if it is still loading.
+     * <p>The images prefetched before this one are discarded.
+     *
+     * @param id The image ID.
+     *
+     * @return The image, or null if it was not prefetched.
+     *
+     * @throws InterruptedException The thread was interrupted.
+     */
+    ImagePlus take(long id) throws InterruptedException {
+        Entry entry = remove(id);
+
+        ImagePlus imp = null;
+        if (entry != null) {
+            try {
+                imp = entry.future.get();
+            } catch (ExecutionException e) {
+                // The image will be loaded normally, which will report the error
+            } finally {
+                entry.release();
+                synchronized (this) {
+                    fill();
+                }
+            }
+        }
+        return imp;
+    }
+
+
+    /**
+     * Discards a prefetched image, without waiting for it, when it is opened another way (with bounds, for example).
+     * <p>The images prefetched before this one are discarded too.
+     *
+     * @param id The image ID.
+     */
+    void discard(long id) {
+        Entry entry = remove(id);
+        if (entry != null) {
+            entry.discard();
+        }
+    }
+
+
+    /**
+     * Cancels the current prefetch and frees the prefetched images.
+     */
+    synchronized void clear() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+        entries.values().forEach(e -> e.future.cancel(true));
+        entries.clear();
+        queue.clear();
+        client = null;
+        loader = null;
+        reserved = new AtomicLong();
+    }
+
+
+    /**
+     * Submits images from the queue until the prefetch depth is reached.
+     */
+    private void fill() {
+        Client sizes = client;
+        Loader images = loader;
+        while (executor != null && entries.size() < depth && !queue.isEmpty()) {
+            long  id    = queue.poll();
+            Entry entry = new Entry(reserved);
+            entry.future = executor.submit(() -> load(sizes, images, id, entry));
+            entries.put(id, entry);
+        }
+    }
+
+
+    /**
+     * Loads an image if it fits in the remaining budget.
+     *
+     * @param client The client.
+     * @param images The function loading images.
+     * @param id     The image ID.
+     * @param entry  The prefetch entry.
+     *
+     * @return The image, or null if it does not fit in the budget.
+     *
+     * @throws Exception If the image could not be loaded.
+     */
+    private ImagePlus load(Client client, Loader images, long id, Entry entry) throws Exception {
+        PixelsWrapper pixels = client.getImage(id).getPixels();
+
+        long bytes = (long) pixels.getSizeX() * pixels.getSizeY() * pixels.getSizeZ() *
+                     pixels.getSizeC() * pixels.getSizeT() * Planes.bytesPerPixel(pixels.getPixelType());
+
+        ImagePlus imp = null;
+        if (entry.reserve(bytes, budget)) {
+            try {
+                imp = images.load(id);
+            } catch (Exception e) {
+                entry.release();
+                throw e;
+            }
+        }
+        return imp;
+    }
+
+
+    /** Function loading an image. */
+    @FunctionalInterface
+    interface Loader {
+
+        /**
+         * Loads an image.
+         *
+         * @param id The image ID.
+         *
+         * @return The image.
+         *
+         * @throws Exception If the image could not be loaded.
+         */
+        ImagePlus load(long id) throws Exception;
+
+    }
+
+
+    /** Prefetched image and the bytes it reserved. */
+    private static final class Entry {
+
+        private final AtomicLong        reserved;
+        private       long              bytes     = 0L;
+        private       boolean           discarded = false;
+        private       Future<ImagePlus> future;
+
+
+        private Entry(AtomicLong reserved) {
+            this.reserved = reserved;
+        }
+
+
+        private synchronized boolean reserve(long size, long budget) {
+            if (discarded) {
+                return false;
+            }
+            long total = reserved.addAndGet(size);
+            if (total > budget) {
+                reserved.addAndGet(-size);
+            } else {
+                bytes = size;
+            }
+            return bytes > 0;
+        }
+
+
+        private synchronized void release() {
+            reserved.addAndGet(-bytes);
+            bytes = 0L;
+        }
+
+
+        private synchronized void discard() {
+            discarded = true;
+            future.cancel(true);
+            release();
+        }
+
+    }
+
+}
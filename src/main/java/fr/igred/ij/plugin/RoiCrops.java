@@ -0,0 +1,334 @@
+/*
+ *  Copyright (C) 2021-2023 GReD
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package fr.igred.ij.plugin;
+
+
+import fr.igred.omero.exception.OMEROServerError;
+import fr.igred.omero.roi.ROIWrapper;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.Roi;
+import ij.process.ImageProcessor;
+import omero.gateway.exception.DSOutOfServiceException;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+
+
+/**
+ * Crops the regions enclosing many ROIs of an image through a single pixel session.
+ * <p>Regions are read plane by plane and from top to bottom, and overlapping regions of a plane are read at once.
+ */
+final class RoiCrops {
+
+    /** Prevent instantiation of utility class. */
+    private RoiCrops() {
+    }
+
+
+    /**
+     * Returns the indices enclosing the positions of shapes along an axis.
+     *
+     * @param positions The shape positions (starting from 1, 0 meaning all).
+     * @param size      The size along the axis.
+     *
+     * @return The first and last indices (starting from 0).
+     */
+    private static int[] span(Iterable<Integer> positions, int size) {
+        int min = Integer.MAX_VALUE;
+        int max = -1;
+        for (int position : positions) {
+            if (position <= 0 || position > size) {
+                return new int[]{0, size - 1};
+            }
+            min = Math.min(min, position - 1);
+            max = Math.max(max, position - 1);
+        }
+        return max < 0 ? new int[]{0, size - 1} : new int[]{min, max};
+    }
+
+
+    /**
+     * Computes the region enclosing a ROI.
+     *
+     * @param roi    The ROI.
+     * @param reader The pixel reader.
+     *
+     * @return The region, or null if it lies outside the image.
+     */
+    private static Crop toCrop(ROIWrapper roi, PixelReader reader) {
+        List<Roi>     shapes = ROIWrapper.toImageJ(Collections.singletonList(roi), "ROI");
+        Rectangle     bounds = null;
+        List<Integer> cs     = new ArrayList<>(shapes.size());
+        List<Integer> zs     = new ArrayList<>(shapes.size());
+        List<Integer> ts     = new ArrayList<>(shapes.size());
+        for (Roi shape : shapes) {
+            Rectangle r = shape.getBounds();
+            bounds = bounds == null ? r : bounds.union(r);
+            cs.add(shape.getCPosition());
+            zs.add(shape.getZPosition());
+            ts.add(shape.getTPosition());
+        }
+        if (bounds == null) {
+            return null;
+        }
+        Rectangle region = bounds.intersection(new Rectangle(0, 0, reader.getSizeX(), reader.getSizeY()));
+        if (region.isEmpty()) {
+            return null;
+        }
+        return new Crop(roi.getId(), region,
+                        span(cs, reader.getSizeC()),
+                        span(zs, reader.getSizeZ()),
+                        span(ts, reader.getSizeT()));
+    }
+
+
+    /**
+     * Groups overlapping regions of a plane, so that each group is read at once.
+     *
+     * @param crops The regions to read in the plane.
+     *
+     * @return The groups, each with the rectangle enclosing its regions.
+     */
+    private static List<Group> merge(List<Crop> crops) {
+        crops.sort(Comparator.comparingInt((Crop c) -> c.bounds.y).thenComparingInt(c -> c.bounds.x));
+        List<Group> groups = new ArrayList<>(crops.size());
+        List<Group> active = new ArrayList<>(1);
+        for (Crop crop : crops) {
+            // Groups ending above this region cannot overlap the next ones either
+            active.removeIf(g -> g.bounds.y + g.bounds.height <= crop.bounds.y);
+            Group group = null;
+            for (Iterator<Group> it = active.iterator(); group == null && it.hasNext(); ) {
+                Group g = it.next();
+                if (g.bounds.intersects(crop.bounds)) {
+                    group = g;
+                }
+            }
+            if (group == null) {
+                group = new Group(crop.bounds);
+                groups.add(group);
+                active.add(group);
+            }
+            group.add(crop);
+        }
+        return groups;
+    }
+
+
+    /**
+     * Reads the regions enclosing the specified ROIs.
+     *
+     * @param reader The pixel reader.
+     * @param rois   The ROIs (null elements are allowed).
+     *
+     * @return The regions, in the same order as the ROIs, with null for null ROIs and ROIs outside the image.
+     *
+     * @throws DSOutOfServiceException Cannot connect to OMERO.
+     * @throws OMEROServerError        Server error.
+     */
+    static List<ImagePlus> read(PixelReader reader, Collection<ROIWrapper> rois)
+    throws DSOutOfServiceException, OMEROServerError {
+        List<Crop> regions = new ArrayList<>(rois.size());
+        for (ROIWrapper roi : rois) {
+            regions.add(roi == null ? null : toCrop(roi, reader));
+        }
+        List<Crop> crops = regions.stream().filter(Objects::nonNull).collect(Collectors.toList());
+
+        // Planes in storage order: C, then Z, then T
+        int                      sizeC  = reader.getSizeC();
+        int                      sizeZ  = reader.getSizeZ();
+        Map<Integer, List<Crop>> planes = new TreeMap<>();
+        for (Crop crop : crops) {
+            for (int t = crop.t[0]; t <= crop.t[1]; t++) {
+                for (int z = crop.z[0]; z <= crop.z[1]; z++) {
+                    for (int c = crop.c[0]; c <= crop.c[1]; c++) {
+                        planes.computeIfAbsent(c + sizeC * (z + sizeZ * t), k -> new ArrayList<>(1)).add(crop);
+                    }
+                }
+            }
+        }
+
+        for (Map.Entry<Integer, List<Crop>> plane : planes.entrySet()) {
+            int c = plane.getKey() % sizeC;
+            int z = plane.getKey() / sizeC % sizeZ;
+            int t = plane.getKey() / (sizeC * sizeZ);
+            for (Group group : merge(plane.getValue())) {
+                Rectangle      r  = group.bounds;
+                ImageProcessor ip = reader.getTile(z, c, t, r.x, r.y, r.width, r.height);
+                for (Crop crop : group.crops) {
+                    ip.setRoi(crop.bounds.x - r.x, crop.bounds.y - r.y, crop.bounds.width, crop.bounds.height);
+                    crop.set(c, z, t, ip.crop());
+                }
+            }
+        }
+
+        List<ImagePlus> images = new ArrayList<>(regions.size());
+        for (Crop crop : regions) {
+            images.add(crop == null ? null : crop.toImagePlus(reader));
+        }
+        return images;
+    }
+
+
+    /**
+     * Region enclosing a ROI, and its planes.
+     */
+    private static final class Crop {
+
+        /** The ROI ID. */
+        private final long id;
+
+        /** The XY bounds. */
+        private final Rectangle bounds;
+
+        /** The first and last channel, slice and frame indices. */
+        private final int[] c;
+        private final int[] z;
+        private final int[] t;
+
+        /** The planes. */
+        private final ImageStack stack;
+
+
+        /**
+         * Creates a new region.
+         *
+         * @param id     The ROI ID.
+         * @param bounds The XY bounds.
+         * @param c      The first and last channel indices.
+         * @param z      The first and last slice indices.
+         * @param t      The first and last frame indices.
+         */
+        Crop(long id, Rectangle bounds, int[] c, int[] z, int[] t) {
+            this.id = id;
+            this.bounds = bounds;
+            this.c = c;
+            this.z = z;
+            this.t = t;
+            this.stack = new ImageStack(bounds.width, bounds.height, sizeC() * sizeZ() * (t[1] - t[0] + 1));
+        }
+
+
+        /**
+         * Returns the number of channels.
+         *
+         * @return See above.
+         */
+        private int sizeC() {
+            return c[1] - c[0] + 1;
+        }
+
+
+        /**
+         * Returns the number of slices.
+         *
+         * @return See above.
+         */
+        private int sizeZ() {
+            return z[1] - z[0] + 1;
+        }
+
+
+        /**
+         * Sets a plane of the region.
+         *
+         * @param channel The channel index in the image.
+         * @param slice   The slice index in the image.
+         * @param frame   The frame index in the image.
+         * @param ip      The plane.
+         */
+        void set(int channel, int slice, int frame, ImageProcessor ip) {
+            int n = 1 + (channel - c[0]) + sizeC() * ((slice - z[0]) + sizeZ() * (frame - t[0]));
+            stack.setProcessor(ip, n);
+        }
+
+
+        /**
+         * Creates an image from the region, with the same display settings as other images read by the reader.
+         *
+         * @param reader The pixel reader.
+         *
+         * @return See above.
+         */
+        ImagePlus toImagePlus(PixelReader reader) {
+            String    title = String.format(Locale.ROOT, "%s [ROI %d]", reader.getName(), id);
+            ImagePlus imp   = new ImagePlus(title, stack);
+            imp.setDimensions(sizeC(), sizeZ(), t[1] - t[0] + 1);
+            if (imp.getNChannels() > 1 || imp.getNFrames() > 1) {
+                imp.setOpenAsHyperStack(true);
+            }
+            int[] channels = new int[sizeC()];
+            for (int i = 0; i < channels.length; i++) {
+                channels[i] = c[0] + i;
+            }
+            imp = reader.setDisplay(imp, channels);
+            imp.setProp("IMAGE_POS_X", bounds.x);
+            imp.setProp("IMAGE_POS_Y", bounds.y);
+            imp.setProp("IMAGE_POS_C", c[0]);
+            imp.setProp("IMAGE_POS_Z", z[0]);
+            imp.setProp("IMAGE_POS_T", t[0]);
+            imp.setProp("ROI_ID", String.valueOf(id));
+            return imp;
+        }
+
+    }
+
+
+    /**
+     * Overlapping regions of a plane, read at once.
+     */
+    private static final class Group {
+
+        /** The regions. */
+        private final List<Crop> crops = new ArrayList<>(1);
+
+        /** The rectangle enclosing the regions. */
+        private Rectangle bounds;
+
+
+        /**
+         * Creates a new group.
+         *
+         * @param bounds The bounds of the first region.
+         */
+        Group(Rectangle bounds) {
+            this.bounds = new Rectangle(bounds);
+        }
+
+
+        /**
+         * Adds a region to the group.
+         *
+         * @param crop The region.
+         */
+        void add(Crop crop) {
+            crops.add(crop);
+            bounds = bounds.union(crop.bounds);
+        }
+
+    }
+
+}
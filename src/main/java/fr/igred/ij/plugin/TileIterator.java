@@ -0,0 +1,201 @@
+/*
+ *  Copyright (C) 2021-2023 GReD
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package fr.igred.ij.plugin;
+
+
+import fr.igred.omero.exception.OMEROServerError;
+import ij.ImagePlus;
+import omero.gateway.exception.DSOutOfServiceException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.IntStream;
+
+
+/**
+ * Iterates over the tiles of an image, row by row, through a single pixel session.
+ * <p>The following tile is read in the background while the current one is processed.
+ */
+class TileIterator implements AutoCloseable {
+
+    /** The pixel reader. */
+    private final PixelReader reader;
+
+    /** The tiles, as {x, y, width, height}. */
+    private final List<int[]> tiles;
+
+    /** The background reader. */
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "OMERO tiles");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /** The index of the next tile. */
+    private int index = 0;
+
+    /** The next tile, read in the background. */
+    private Future<ImagePlus> next;
+
+
+    /**
+     * Splits an image into tiles.
+     *
+     * @param reader     The pixel reader, set to the desired resolution level.
+     * @param tileWidth  The tile width (including the overlap).
+     * @param tileHeight The tile height (including the overlap).
+     * @param overlap    The number of pixels shared by neighbouring tiles.
+     */
+    TileIterator(PixelReader reader, int tileWidth, int tileHeight, int overlap) {
+        this.reader = reader;
+
+        List<Integer> xs = starts(reader.getSizeX(), tileWidth, overlap);
+        List<Integer> ys = starts(reader.getSizeY(), tileHeight, overlap);
+        this.tiles = new ArrayList<>(xs.size() * ys.size());
+        for (int y : ys) {
+            for (int x : xs) {
+                int width  = Math.min(tileWidth, reader.getSizeX() - x);
+                int height = Math.min(tileHeight, reader.getSizeY() - y);
+                tiles.add(new int[]{x, y, width, height});
+            }
+        }
+        readAhead();
+    }
+
+
+    /**
+     * Computes the start coordinates of the tiles along one axis.
+     *
+     * @param size    The image size along the axis.
+     * @param tile    The tile size.
+     * @param overlap The overlap between tiles.
+     *
+     * @return See above.
+     */
+    private static List<Integer> starts(int size, int tile, int overlap) {
+        int           step   = Math.max(1, tile - overlap);
+        List<Integer> starts = new ArrayList<>(size / step + 1);
+        int           start  = 0;
+        starts.add(start);
+        while (start + tile < size) {
+            start += step;
+            starts.add(start);
+        }
+        return starts;
+    }
+
+
+    /**
+     * Returns the indices from 0 to size - 1.
+     *
+     * @param size The number of indices.
+     *
+     * @return See above.
+     */
+    private static int[] all(int size) {
+        return IntStream.range(0, size).toArray();
+    }
+
+
+    /**
+     * Reads all the planes of a tile.
+     *
+     * @param tile The tile, as {x, y, width, height}.
+     *
+     * @return The tile, as an {@link ImagePlus}.
+     *
+     * @throws DSOutOfServiceException Cannot connect to OMERO.
+     * @throws OMEROServerError        Server error.
+     */
+    private ImagePlus read(int[] tile) throws DSOutOfServiceException, OMEROServerError {
+        String title = String.format(Locale.ROOT, "%s [%d,%d]", reader.getName(), tile[0], tile[1]);
+        return reader.read(title, tile[0], tile[1], tile[2], tile[3],
+                           all(reader.getSizeZ()), all(reader.getSizeC()), all(reader.getSizeT()));
+    }
+
+
+    /**
+     * Starts reading the next tile in the background.
+     */
+    private void readAhead() {
+        if (index < tiles.size()) {
+            int[] tile = tiles.get(index);
+            next = executor.submit(() -> read(tile));
+        } else {
+            next = null;
+        }
+    }
+
+
+    /**
+     * Returns the number of tiles.
+     *
+     * @return See above.
+     */
+    int size() {
+        return tiles.size();
+    }
+
+
+    /**
+     * Returns whether there are more tiles.
+     *
+     * @return See above.
+     */
+    boolean hasNext() {
+        return next != null;
+    }
+
+
+    /**
+     * Returns the next tile and starts reading the following one.
+     *
+     * @return See above.
+     *
+     * @throws OMEROServerError     The tile could not be read.
+     * @throws InterruptedException The thread was interrupted.
+     */
+    ImagePlus next() throws OMEROServerError, InterruptedException {
+        if (next == null) {
+            throw new NoSuchElementException("No more tiles");
+        }
+        try {
+            return next.get();
+        } catch (ExecutionException e) {
+            throw new OMEROServerError("Could not read tile " + (index + 1), e.getCause());
+        } finally {
+            index++;
+            readAhead();
+        }
+    }
+
+
+    /**
+     * Stops reading ahead and closes the pixel store.
+     */
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        reader.close();
+    }
+
+}
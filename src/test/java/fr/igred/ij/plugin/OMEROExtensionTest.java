@@ -18,10 +18,12 @@ package fr.igred.ij.plugin;
 
 import fr.igred.omero.Client;
 import fr.igred.omero.annotations.TableWrapper;
+import ij.IJ;
 import ij.ImagePlus;
 import ij.gui.Overlay;
 import ij.gui.Roi;
 import ij.measure.ResultsTable;
+import ij.process.LUT;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -36,17 +38,23 @@ import java.io.IOException;
 import java.io.PrintStream;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.security.SecureRandom;
 import java.text.NumberFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
 
@@ -78,6 +86,26 @@ class OMEROExtensionTest {
     }
 
 
+    private static void assertSameImage(ImagePlus expected, ImagePlus actual) {
+        assertEquals(expected.getNChannels(), actual.getNChannels());
+        assertEquals(expected.getNSlices(), actual.getNSlices());
+        assertEquals(expected.getNFrames(), actual.getNFrames());
+        assertEquals(expected.isComposite(), actual.isComposite());
+        assertEquals(expected.getDisplayMode(), actual.getDisplayMode());
+        assertEquals(expected.getCalibration().pixelWidth, actual.getCalibration().pixelWidth, Double.MIN_VALUE);
+        assertEquals(expected.getCalibration().getXUnit(), actual.getCalibration().getXUnit());
+        LUT[] expectedLuts = expected.getLuts();
+        LUT[] actualLuts   = actual.getLuts();
+        assertEquals(expectedLuts.length, actualLuts.length);
+        for (int i = 0; i < expectedLuts.length; i++) {
+            assertEquals(expectedLuts[i].getRGB(255), actualLuts[i].getRGB(255));
+        }
+        int n = expected.getStackIndex(2, 2, 2);
+        assertArrayEquals(expected.getStack().getProcessor(n).getFloatArray(),
+                          actual.getStack().getProcessor(n).getFloatArray());
+    }
+
+
     @Test
     void testSwitchGroup() {
         final double target  = 4;
@@ -106,6 +134,22 @@ class OMEROExtensionTest {
     }
 
 
+    @ParameterizedTest
+    @CsvSource(delimiter = ';', value = {"images;;1,2,3,4,5,6,7,8,9,10",
+                                         "datasets;;1,2,3",
+                                         "tags;;1,2,3",
+                                         "images;image1.fake;1,2,4",
+                                         "screens;TestScreen;1",
+                                         "kv-pairs;testKey1;4,5",})
+    void testListForUserByName(String type, String name, String output) {
+        Object[] args   = {USERNAME};
+        Object[] args2  = {type, name, null};
+        ext.handleExtension("listForUser", args);
+        String result = ext.handleExtension("list", args2);
+        assertEquals(output, result, String.format("\"list\" failed for: %s,%s", type, name));
+    }
+
+
     @ParameterizedTest
     @CsvSource(delimiter = ';', value = {"list;projects;1,2",
                                          "list;project;1,2",
@@ -194,6 +238,90 @@ class OMEROExtensionTest {
     }
 
 
+    @ParameterizedTest
+    @CsvSource(delimiter = ';', value = {"images;dataset;1.0;3",
+                                         "images;project;1.0;3",
+                                         "datasets;project;1.0;2",
+                                         "tags;image;1.0;2",
+                                         "images;tag;1.0;3",
+                                         "plates;screen;2.0;2",
+                                         "wells;screen;2.0;4",
+                                         "images;screen;1.0;2",
+                                         "wells;plate;2.0;2",
+                                         "images;plate;2.0;2",
+                                         "images;well;1.0;2",
+                                         "kv-pairs;project;2.0;1",
+                                         "images;dataset;2.0;0",})
+    void testCount(String type, String parent, double id, double output) {
+        Object[] args   = {type, parent, id};
+        String   result = ext.handleExtension("count", args);
+        assertEquals(output, Double.parseDouble(result), String.format("\"count\" failed for: %s,%s", type, parent));
+    }
+
+
+    @Test
+    void testListWithColumns() {
+        final int size  = 512;
+        final int sizeZ = 3;
+
+        ResultsTable rt = ext.listWithColumns("images", "name, owner, sizeX, sizeZ", "dataset", 1L);
+        assertEquals(3, rt.size());
+        assertEquals(1, (int) rt.getValue("ID", 0));
+        assertEquals("image1.fake", rt.getStringValue("name", 0));
+        assertEquals(USERNAME, rt.getStringValue("owner", 0));
+        assertEquals(size, (int) rt.getValue("sizeX", 0));
+        assertEquals(sizeZ, (int) rt.getValue("sizeZ", 0));
+    }
+
+
+    @Test
+    void testListWellsWithColumns() {
+        ResultsTable rt = ext.listWithColumns("wells", "name", "plate", 1L);
+        assertEquals(1, rt.size());
+        assertEquals("Well A-1", rt.getStringValue("name", 0));
+    }
+
+
+    @Test
+    void testListToArray() {
+        Object[] ids    = new Object[1];
+        Object[] args   = {"images", ids, "dataset", 1.0};
+        String   result = ext.handleExtension("listToArray", args);
+        assertEquals("3", result);
+        assertArrayEquals(new Object[]{1.0, 2.0, 3.0}, (Object[]) ids[0]);
+    }
+
+
+    @Test
+    void testListWithCursor() {
+        final double pageSize = 2;
+        Object[]     args     = {"images", pageSize, "dataset", 1.0};
+        String       cursor   = ext.handleExtension("openCursor", args);
+        Object[]     args2    = {Double.parseDouble(cursor)};
+        String       page1    = ext.handleExtension("listNext", args2);
+        String       page2    = ext.handleExtension("listNext", args2);
+        String       page3    = ext.handleExtension("listNext", args2);
+        ext.handleExtension("closeCursor", args2);
+        assertEquals("1,2", page1);
+        assertEquals("3", page2);
+        assertEquals("", page3);
+    }
+
+
+    @Test
+    void testListByNameWithCursor() {
+        final double pageSize = 2;
+        Object[]     args     = {"images", pageSize, "image1.fake", null};
+        String       cursor   = ext.handleExtension("openCursor", args);
+        Object[]     args2    = {Double.parseDouble(cursor)};
+        String       page1    = ext.handleExtension("listNext", args2);
+        String       page2    = ext.handleExtension("listNext", args2);
+        ext.handleExtension("closeCursor", args2);
+        assertEquals("1,2", page1);
+        assertEquals("4", page2);
+    }
+
+
     @ParameterizedTest
     @CsvSource(delimiter = ';', value = {"getName;project;1.0;TestProject",
                                          "getName;projects;1.0;TestProject",
@@ -213,6 +341,20 @@ class OMEROExtensionTest {
     }
 
 
+    @Test
+    void testCacheStatistics() {
+        Object[] args = {"image", 1.0};
+        ext.handleExtension("getName", args);
+        ext.handleExtension("getName", args);
+        String result = ext.handleExtension("getCacheStatistics", NULL_ARRAY);
+        ext.handleExtension("clearCache", NULL_ARRAY);
+        ext.handleExtension("getName", args);
+        String result2 = ext.handleExtension("getCacheStatistics", NULL_ARRAY);
+        assertEquals("1,1", result);
+        assertEquals("1,2", result2);
+    }
+
+
     @Test
     void testCreateProject() {
         Object[] args   = {"toDelete", "toBeDeleted"};
@@ -237,6 +379,27 @@ class OMEROExtensionTest {
     }
 
 
+    @Test
+    void testDeleteMany() {
+        Object[] args  = {"toDelete", "toBeDeleted"};
+        String   id1   = ext.handleExtension("createTag", args);
+        String   id2   = ext.handleExtension("createTag", args);
+        String   id3   = ext.handleExtension("createTag", args);
+        Object[] args2 = {"tags", id1 + "," + id2, 1.0};
+        double   job   = Double.parseDouble(ext.handleExtension("deleteMany", args2));
+
+        Object[] args3   = {job};
+        String   deleted = ext.handleExtension("awaitDelete", args3);
+        String   status  = ext.handleExtension("deleteStatus", args3);
+        Object[] args4   = {"tags", id3, null};
+        String   sync    = ext.handleExtension("deleteMany", args4);
+        assertEquals("2", deleted);
+        // The handle is released once the command has finished
+        assertEquals("", status);
+        assertEquals("0", sync);
+    }
+
+
     @Test
     void testCreateAndLinkTag() {
         final double projectId = 2;
@@ -298,6 +461,26 @@ class OMEROExtensionTest {
     }
 
 
+    @Test
+    void testUnlinkManyThenLinkMany() {
+        Object[] listArgs = {"images", "tag", 1.0};
+        Object[] args     = {"images", "1,2,4", "tag", 1.0};
+
+        String unlinked = ext.handleExtension("unlinkMany", args);
+        String res      = ext.handleExtension("list", listArgs);
+
+        String linked  = ext.handleExtension("linkMany", args);
+        String res2    = ext.handleExtension("list", listArgs);
+        String skipped = ext.handleExtension("linkMany", args);
+
+        assertEquals("3", unlinked);
+        assertEquals("", res);
+        assertEquals("3", linked);
+        assertEquals(3, res2.split(",").length);
+        assertEquals("0", skipped);
+    }
+
+
     @ParameterizedTest
     @CsvSource(delimiter = ';', value = {"project;1.0;test1.txt",
                                          "projects;1.0;test2.txt",
@@ -356,6 +539,168 @@ class OMEROExtensionTest {
     }
 
 
+    @Test
+    void testGetImageWithPrefetch() {
+        final int size = 512;
+        ext.prefetch("1,2", 2, null);
+        ImagePlus imp1 = ext.getImage(1L, null);
+        ImagePlus imp2 = ext.getImage(2L, null);
+        assertEquals(size, imp1.getWidth());
+        assertEquals(size, imp2.getHeight());
+        assertEquals(imp1.getStackSize(), imp2.getStackSize());
+    }
+
+
+    @Test
+    void testGetImageWithPrefetchAndReadThreads() {
+        ext.setReadThreads(4);
+        ImagePlus imp = ext.getImage(1L, null);
+        ext.prefetch("1", 1, null);
+        ImagePlus prefetched = ext.getImage(1L, null);
+        assertSameImage(imp, prefetched);
+        assertEquals(imp.getProp("IMAGE_RESOLUTION_LEVEL"), prefetched.getProp("IMAGE_RESOLUTION_LEVEL"));
+    }
+
+
+    @Test
+    void testGetImageWithReadThreadsKeepsDisplay() {
+        ImagePlus imp = ext.getImage(1L, null);
+        ext.setReadThreads(4);
+        ImagePlus parallel = ext.getImage(1L, null);
+        ImagePlus cropped  = ext.getImage(1L, "x:300:480 y:24:36");
+        ext.setReadThreads(1);
+        ImagePlus reference = ext.getImage(1L, "x:300:480 y:24:36");
+        assertTrue(imp.getNChannels() > 1);
+        assertSameImage(imp, parallel);
+        assertSameImage(reference, cropped);
+    }
+
+
+    @Test
+    void testGetImageWithReadThreads() {
+        ImagePlus imp = ext.getImage(1L, null);
+        ext.setReadThreads(4);
+        ImagePlus parallel = ext.getImage(1L, null);
+        ImagePlus cropped  = ext.getImage(1L, "x:300:480 y:24:36 z:1:3 c:0:4 t:3:6");
+        assertEquals(imp.getStackSize(), parallel.getStackSize());
+        assertEquals(imp.getNChannels(), parallel.getNChannels());
+        assertEquals(imp.getNFrames(), parallel.getNFrames());
+        int n = imp.getStackIndex(3, 2, 5);
+        assertArrayEquals(imp.getStack().getProcessor(n).getFloatArray(),
+                          parallel.getStack().getProcessor(n).getFloatArray());
+        assertEquals(180, cropped.getWidth());
+        assertEquals(24, cropped.getStackSize());
+    }
+
+
+    @Test
+    void testGetImageWithPixelCache() throws IOException {
+        Path      dir = Paths.get("pixel-cache");
+        ImagePlus imp = ext.getImage(1L, "x:300:480 y:24:36 z:1:3");
+        ext.setPixelCache(dir.toString(), 16L);
+        ImagePlus first  = ext.getImage(1L, "x:300:480 y:24:36 z:1:3");
+        ImagePlus cached = ext.getImage(1L, "x:300:480 y:24:36 z:1:3");
+        ext.setPixelCache("", null);
+        try (Stream<Path> files = Files.walk(dir)) {
+            assertTrue(files.anyMatch(f -> f.toString().endsWith(".pix")));
+        }
+        assertEquals(imp.getStackSize(), cached.getStackSize());
+        assertSameImage(imp, first);
+        assertSameImage(imp, cached);
+        assertEquals(imp.getProp("IMAGE_POS_X"), cached.getProp("IMAGE_POS_X"));
+        int n = imp.getStackIndex(3, 2, 5);
+        assertArrayEquals(imp.getStack().getProcessor(n).getFloatArray(),
+                          cached.getStack().getProcessor(n).getFloatArray());
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.delete(file);
+            }
+        }
+    }
+
+
+    @Test
+    void testGetImageVirtual() {
+        ImagePlus imp     = ext.getImage(1L, null);
+        ImagePlus virtual = ext.getImage(1L, "virtual");
+        assertTrue(virtual.getStack().isVirtual());
+        assertEquals(imp.getWidth(), virtual.getWidth());
+        assertEquals(imp.getNChannels(), virtual.getNChannels());
+        assertEquals(imp.getNSlices(), virtual.getNSlices());
+        assertEquals(imp.getNFrames(), virtual.getNFrames());
+        int n = imp.getStackIndex(2, 3, 4);
+        assertArrayEquals(imp.getStack().getProcessor(n).getFloatArray(),
+                          virtual.getStack().getProcessor(n).getFloatArray());
+    }
+
+
+    @Test
+    void testGetProjection() {
+        ImagePlus imp = ext.getImage(1L, null);
+        ImagePlus max = ext.getProjection(1L, "max", 0, 2, 1, 2);
+        ImagePlus all = ext.getProjection(1L, "sum", 0, 2, null, null);
+        assertEquals(1, max.getStackSize());
+        assertEquals(imp.getNChannels() * imp.getNFrames(), all.getStackSize());
+        assertEquals(32, all.getBitDepth());
+
+        float[] expected = new float[imp.getWidth() * imp.getHeight()];
+        Arrays.fill(expected, Float.NEGATIVE_INFINITY);
+        for (int z = 1; z <= 3; z++) {
+            int     n     = imp.getStackIndex(2, z, 3);
+            float[] plane = (float[]) imp.getStack().getProcessor(n).convertToFloat().getPixels();
+            for (int i = 0; i < expected.length; i++) {
+                expected[i] = Math.max(expected[i], plane[i]);
+            }
+        }
+        assertArrayEquals(expected, (float[]) max.getProcessor().convertToFloat().getPixels());
+        assertNull(ext.getProjection(1L, "median", 0, 2, null, null));
+    }
+
+
+    @Test
+    void testGetImageWithLevel() {
+        ImagePlus imp = ext.getImage(1L, "x:300:480 y:24:36 z:1:3 c:0:4 t:3:6 level:0");
+        assertEquals(180, imp.getWidth());
+        assertEquals(12, imp.getHeight());
+        assertEquals(4, imp.getNChannels());
+        assertEquals(2, imp.getNSlices());
+        assertEquals(3, imp.getNFrames());
+        assertEquals(300, Integer.parseInt(imp.getProp("IMAGE_POS_X")));
+        assertNull(ext.getImage(1L, "level:1"));
+    }
+
+
+    @ParameterizedTest
+    @CsvSource(delimiter = ';', value = {"c:1,3 t:0:7:3;2;3;3", "z:0,2 c:4 t:5:;1;2;2", "t:1,2,4:7:2;5;3;4"})
+    void testGetImageSparsePlanes(String bounds, int sizeC, int sizeZ, int sizeT) {
+        ImagePlus imp = ext.getImage(1L, bounds);
+        assertEquals(512, imp.getWidth());
+        assertEquals(sizeC, imp.getNChannels());
+        assertEquals(sizeZ, imp.getNSlices());
+        assertEquals(sizeT, imp.getNFrames());
+    }
+
+
+    @Test
+    void testOpenTiles() {
+        final int size = 200;
+        final int last = 112;
+        assertEquals(9, ext.openTiles(1L, size, size, 0, 0));
+        ImagePlus tile = ext.nextTile();
+        assertEquals(size, tile.getWidth());
+        assertEquals(size, tile.getHeight());
+        assertEquals(105, tile.getStackSize());
+        for (int i = 1; i < 9; i++) {
+            tile = ext.nextTile();
+        }
+        assertEquals(last, tile.getWidth());
+        assertEquals(last, tile.getHeight());
+        assertEquals(400, Integer.parseInt(tile.getProp("IMAGE_POS_X")));
+        assertEquals(400, Integer.parseInt(tile.getProp("IMAGE_POS_Y")));
+        assertNull(ext.nextTile());
+    }
+
+
     @ParameterizedTest
     @ValueSource(strings = {"x:100:200 y:1:511", "x:50:150 y:2:512", "x:50:150 y:2:513"})
     void testGetImageTwoBounds(String bounds) {
@@ -474,6 +819,8 @@ class OMEROExtensionTest {
         Roi       retrievedRoi = imp.getOverlay().get(0);
         String    roiId        = retrievedRoi.getProperty("ROI_ID");
         ImagePlus cropped      = ext.getImage(1L, roiId);
+        ImagePlus fromROI      = ext.getImageFromROI(1L, Long.parseLong(roiId));
+        ImagePlus otherImage   = ext.getImage(2L, roiId);
 
         ext.removeROIs(1L);
         int clearedROIs = ext.getROIs(imp, 1L, true, "");
@@ -485,6 +832,45 @@ class OMEROExtensionTest {
         assertEquals(30, Integer.parseInt(cropped.getProp("IMAGE_POS_Y")));
         assertEquals(70, cropped.getWidth());
         assertEquals(50, cropped.getHeight());
+        assertEquals(70, fromROI.getWidth());
+        assertNull(otherImage);
+    }
+
+
+    @Test
+    void testGetImagesFromROIs() {
+        ImagePlus imp     = ext.getImage(1L, null);
+        Overlay   overlay = new Overlay();
+        overlay.add(new Roi(25, 30, 70, 50));
+        overlay.add(new Roi(60, 40, 50, 50));
+        overlay.add(new Roi(300, 300, 20, 10));
+        imp.setOverlay(overlay);
+        int savedROIs = ext.saveROIs(imp, 1L, "");
+
+        List<ImagePlus> crops    = ext.getImagesFromROIs(1L, null);
+        String          first    = crops.get(0).getProp("ROI_ID");
+        String          last     = crops.get(2).getProp("ROI_ID");
+        List<ImagePlus> selected = ext.getImagesFromROIs(1L, last + ",-5," + first);
+        List<ImagePlus> none     = ext.getImagesFromROIs(1L, "none");
+        ImagePlus       single   = ext.getImage(1L, first);
+        ext.removeROIs(1L);
+
+        assertSameImage(single, crops.get(0));
+
+        assertEquals(3, selected.size());
+        assertEquals(20, selected.get(0).getWidth());
+        assertNull(selected.get(1));
+        assertEquals(70, selected.get(2).getWidth());
+        assertTrue(none.isEmpty());
+
+        assertEquals(3, savedROIs);
+        assertEquals(3, crops.size());
+        assertEquals(70, crops.get(0).getWidth());
+        assertEquals(50, crops.get(0).getHeight());
+        assertEquals(50, crops.get(1).getWidth());
+        assertEquals(20, crops.get(2).getWidth());
+        assertEquals(300, Integer.parseInt(crops.get(2).getProp("IMAGE_POS_X")));
+        assertEquals(imp.getStackSize(), crops.get(0).getStackSize());
     }
 
 
@@ -525,6 +911,18 @@ class OMEROExtensionTest {
     }
 
 
+    @Test
+    void testGetKeyValuePairsToArrays() {
+        Object[] keys   = new Object[1];
+        Object[] values = new Object[1];
+        Object[] args   = {"image", 1.0, keys, values};
+        String   result = ext.handleExtension("getKeyValuePairsToArrays", args);
+        assertEquals("2", result);
+        assertArrayEquals(new Object[]{"testKey1", "testKey2"}, (Object[]) keys[0]);
+        assertArrayEquals(new Object[]{"testValue1", "20"}, (Object[]) values[0]);
+    }
+
+
     @ParameterizedTest
     @CsvSource(delimiter = ';', value = {"image;1;testKey1;null;testValue1",
                                          "image;3;testKey2;null;20",
@@ -562,6 +960,115 @@ class OMEROExtensionTest {
     }
 
 
+    @Test
+    void testUploadImage() {
+        final int size = 100;
+        ImagePlus imp      = IJ.createImage("upload", "16-bit ramp", size, size, 2, 3, 4);
+        imp.getCalibration().pixelWidth = 0.5;
+        imp.getCalibration().pixelHeight = 0.5;
+        imp.getCalibration().setUnit("µm");
+        long      imageId  = ext.uploadImage(imp, 2L);
+        ImagePlus uploaded = ext.getImage(imageId, null);
+        Object[]  args2    = {"image", (double) imageId};
+        ext.handleExtension("delete", args2);
+
+        assertNotEquals(-1L, imageId);
+        assertEquals(size, uploaded.getWidth());
+        assertEquals(2 * 3 * 4, uploaded.getStackSize());
+        assertEquals(imp.getStack().getProcessor(5).getPixel(50, 50),
+                     uploaded.getStack().getProcessor(5).getPixel(50, 50));
+        assertEquals(0.5, uploaded.getCalibration().pixelWidth, Double.MIN_VALUE);
+    }
+
+
+    @Test
+    void testImportImageSkipExisting() throws IOException {
+        String path  = "skip&pixelType=uint8&sizeX=64&sizeY=64.fake";
+        String path2 = "skip2&pixelType=uint8&sizeX=64&sizeY=64.fake";
+        File   f     = new File("." + File.separator + path);
+        File   f2    = new File("." + File.separator + path2);
+        if (!f.createNewFile() || !f2.createNewFile()) {
+            System.err.println("\"" + f.getCanonicalPath() + "\" could not be created.");
+            fail();
+        }
+
+        String ids  = ext.importImage(2L, path, true);
+        String ids2 = ext.importImage(2L, path, true);
+        // Same (empty) content, but a different name
+        String ids3 = ext.importImage(2L, path2, true);
+        ext.deleteMany("images", ids + "," + ids3, false);
+
+        Object[] args    = {"image", "dataset", 2.0D};
+        String   listIds = ext.handleExtension("list", args);
+        assertNotEquals("", ids);
+        assertEquals(ids, ids2);
+        assertNotEquals("", ids3);
+        assertNotEquals(ids, ids3);
+        assertEquals("", listIds);
+        Files.deleteIfExists(f.toPath());
+        Files.deleteIfExists(f2.toPath());
+    }
+
+
+    @Test
+    void testImportImageAsync() throws IOException {
+        String path1 = "async1&pixelType=uint8&sizeX=64&sizeY=64.fake";
+        String path2 = "async2&pixelType=uint16&sizeX=64&sizeY=64.fake";
+        File   f1    = new File("." + File.separator + path1);
+        File   f2    = new File("." + File.separator + path2);
+        if (!f1.createNewFile() || !f2.createNewFile()) {
+            System.err.println("\"" + f1.getCanonicalPath() + "\" could not be created.");
+            fail();
+        }
+
+        Object[] args0 = {1.0d};
+        ext.handleExtension("setImportWorkers", args0);
+        Object[] args1 = {2.0d, path1};
+        Object[] args2 = {2.0d, path2};
+        ext.handleExtension("importImageAsync", args1);
+        String queued  = ext.handleExtension("importImageAsync", args2);
+        String listIds = ext.handleExtension("awaitImports", NULL_ARRAY);
+        assertEquals("2", queued);
+        assertEquals(2, listIds.split(",").length);
+
+        Object[] args3 = {"images", listIds, null};
+        String   job   = ext.handleExtension("deleteMany", args3);
+        assertNotEquals("-1", job);
+
+        Object[] args4    = {"image", "dataset", 2.0D};
+        String   listIds2 = ext.handleExtension("list", args4);
+        assertEquals("", listIds2);
+        Files.deleteIfExists(f1.toPath());
+        Files.deleteIfExists(f2.toPath());
+    }
+
+
+    @Test
+    void testImportImages() throws IOException {
+        String path1 = "batch1&pixelType=uint8&sizeX=64&sizeY=64.fake";
+        String path2 = "batch2&pixelType=uint8&sizeX=64&sizeY=64.fake";
+        File   f1    = new File("." + File.separator + path1);
+        File   f2    = new File("." + File.separator + path2);
+        if (!f1.createNewFile() || !f2.createNewFile()) {
+            System.err.println("\"" + f1.getCanonicalPath() + "\" could not be created.");
+            fail();
+        }
+
+        Map<String, List<Long>> imported = ext.importImages(2L, path1 + "," + path2, false);
+        List<Long> ids = imported.values()
+                                 .stream()
+                                 .flatMap(List::stream)
+                                 .collect(Collectors.toList());
+        ext.deleteMany("images", ids.stream().map(String::valueOf).collect(Collectors.joining(",")), false);
+
+        assertEquals(2, imported.size());
+        assertEquals(2, ids.size());
+        assertTrue(imported.containsKey(f1.toPath().toAbsolutePath().normalize().toString()));
+        Files.deleteIfExists(f1.toPath());
+        Files.deleteIfExists(f2.toPath());
+    }
+
+
     @Test
     void testDownloadImage() throws IOException {
         Object[]   args    = {1.0d, "."};
@@ -576,6 +1083,28 @@ class OMEROExtensionTest {
     }
 
 
+    @Test
+    void testDownloadImages() throws IOException {
+        Map<Long, List<File>> files = ext.downloadImages("1,2", ".", 2);
+        assertEquals(2, files.size());
+        assertEquals(2, files.get(1L).size());
+        for (List<File> imageFiles : files.values()) {
+            for (File file : imageFiles) {
+                assertTrue(file.exists());
+            }
+        }
+        assertTrue(files.get(1L).get(0).getParentFile().getName().startsWith("Fileset_"));
+        for (List<File> imageFiles : files.values()) {
+            for (File file : imageFiles) {
+                Files.deleteIfExists(file.toPath());
+            }
+        }
+        for (List<File> imageFiles : files.values()) {
+            Files.deleteIfExists(imageFiles.get(0).toPath().getParent());
+        }
+    }
+
+
     @Test
     void testSudo() {
         ext.handleExtension("disconnect", NULL_ARRAY);